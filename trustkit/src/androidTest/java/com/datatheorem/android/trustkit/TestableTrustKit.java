@@ -53,6 +53,7 @@ public class TestableTrustKit extends TrustKit {
 
     public static void reset() {
         trustKitInstance = null;
+        pendingInitialization = null;
         TestableTrustManagerBuilder.reset();
     }
 }
@@ -12,6 +12,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertTrue;
 
@@ -43,6 +44,92 @@ public class TrustKitTest {
         assertTrue(didInitFail);
     }
 
+    @Test
+    public void testInitializeAsync() {
+        Context context = InstrumentationRegistry.getContext();
+        TrustKit.initializeAsync(context);
+
+        // Retrieving the instance waits for the initialization to complete
+        TrustKit trustkit = TrustKit.getInstance();
+        assertNotNull(trustkit);
+        assertNotNull(trustkit.getConfiguration());
+        assertNotNull(trustkit.getSSLSocketFactory("www.datatheorem.com"));
+        assertNotNull(trustkit.getTrustManager("www.datatheorem.com"));
+
+        // Initialize again and ensure it fails
+        boolean didInitFail = false;
+        try {
+            TrustKit.initializeWithNetworkSecurityConfiguration(context);
+        } catch (IllegalStateException e) {
+            didInitFail = true;
+        }
+        assertTrue(didInitFail);
+    }
+
+    @Test
+    public void testInitializeAsyncWithBadXmlFile() {
+        Context context = InstrumentationRegistry.getContext();
+        int pemFileId = context.getResources().getIdentifier("bad_config", "xml",
+                context.getPackageName());
+        TrustKit.initializeAsync(context, pemFileId);
+
+        // The error is reported when retrieving the instance
+        boolean didInitFail = false;
+        try {
+            TrustKit.getInstance();
+        } catch (ConfigurationException e) {
+            didInitFail = true;
+        }
+        assertTrue(didInitFail);
+    }
+
+    @Test
+    public void testInitializeAsyncAgainAfterFailure() {
+        Context context = InstrumentationRegistry.getContext();
+        int pemFileId = context.getResources().getIdentifier("bad_config", "xml",
+                context.getPackageName());
+        TrustKit.initializeAsync(context, pemFileId);
+
+        boolean didInitFail = false;
+        try {
+            TrustKit.getInstance();
+        } catch (ConfigurationException e) {
+            didInitFail = true;
+        }
+        assertTrue(didInitFail);
+
+        // A failed initialization does not prevent initializing TrustKit again
+        TrustKit.initializeAsync(context);
+        TrustKit trustkit = TrustKit.getInstance();
+        assertNotNull(trustkit);
+        assertNotNull(trustkit.getTrustManager("www.datatheorem.com"));
+    }
+
+    @Test
+    public void testGetMetrics() {
+        Context context = InstrumentationRegistry.getContext();
+        TrustKit trustkit = TrustKit.initializeWithNetworkSecurityConfiguration(context);
+
+        // Reports from other tests may still be pending, but the App's buffer never fills up
+        TrustKitMetrics metrics = trustkit.getMetrics();
+        assertTrue(metrics.getPendingReportCount() >= 0);
+        assertEquals(0, metrics.getDroppedReportCount());
+        assertTrue(metrics.getReusedReportConnectionCount() >= 0);
+        assertTrue(metrics.getOpenedReportConnectionCount() >= 0);
+        assertTrue(metrics.getValidatedChainCacheHitCount() >= 0);
+        assertTrue(metrics.getValidatedChainCacheMissCount() >= 0);
+    }
+
+    @Test
+    public void testPrewarm() {
+        // Prewarming can be done before TrustKit is initialized
+        TrustKit.prewarm();
+        Context context = InstrumentationRegistry.getContext();
+        TrustKit trustkit = TrustKit.initializeWithNetworkSecurityConfiguration(context);
+        assertNotNull(trustkit.getTrustManager("www.datatheorem.com"));
+        TrustKit.prewarm();
+    }
+
     @Test
     public void testInitializeWithValidXmlFile() {
         Context context = InstrumentationRegistry.getContext();
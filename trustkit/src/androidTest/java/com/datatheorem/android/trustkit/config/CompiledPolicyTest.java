@@ -0,0 +1,175 @@
+package com.datatheorem.android.trustkit.config;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.security.cert.CertificateException;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+
+@RunWith(AndroidJUnit4.class)
+public class CompiledPolicyTest {
+
+    private XmlPullParser parseXmlString(String xmlString) throws XmlPullParserException {
+        XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+
+        XmlPullParser xpp = factory.newPullParser();
+        String test = xmlString.replace("\n","").replace("  ","");
+        xpp.setInput(new StringReader(test));
+        return xpp;
+    }
+
+    private static byte[] compile(TrustKitConfiguration config)
+            throws IOException, CertificateException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        CompiledPolicyWriter.write(config, stream);
+        return stream.toByteArray();
+    }
+
+    private static String buildXmlPolicy(int domainCount) {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+                "<network-security-config>" +
+                "<trustkit-config reportBatchSize=\"10\" reportSamplingRate=\"0.5\" />");
+        for (int i = 0; i < domainCount; i++) {
+            xml.append("<domain-config>" +
+                    "<domain includeSubdomains=\"true\">www.domain" + i + ".com</domain>" +
+                    "<pin-set expiration=\"2018-01-01\">" +
+                    "<pin digest=\"SHA-256\">rFjc3wG7lTZe43zeYTvPq8k4xdDEutCmIhI5dn4oCeE=</pin>" +
+                    "<pin digest=\"SHA-256\">0SDf3cRToyZJaMsoS17oF72VMavLxj/N7WBNasNuiR8=</pin>" +
+                    "</pin-set>" +
+                    "<trustkit-config enforcePinning=\"true\" validationCacheTtl=\"60\">" +
+                    "<report-uri gzip=\"true\">https://some.reportdomain.com/</report-uri>" +
+                    "</trustkit-config>" +
+                    "<domain-config>" +
+                    "<domain>api.domain" + i + ".com</domain>" +
+                    "<trustkit-config disableDefaultReportUri=\"true\" " +
+                    "reportSamplingRate=\"0.1\" />" +
+                    "</domain-config>" +
+                    "</domain-config>");
+        }
+        xml.append("</network-security-config>");
+        return xml.toString();
+    }
+
+    @Test
+    public void testCompiledPolicyMatchesXmlPolicy()
+            throws XmlPullParserException, IOException, CertificateException {
+        Context context = InstrumentationRegistry.getContext();
+        // Including policies with many domains, which is when compiling them matters most
+        for (int domainCount = 1; domainCount <= 100; domainCount *= 10) {
+            TrustKitConfiguration xmlConfig = TrustKitConfiguration.fromXmlPolicy(context,
+                    parseXmlString(buildXmlPolicy(domainCount)));
+            TrustKitConfiguration compiledConfig = TrustKitConfiguration.fromCompiledPolicy(
+                    new ByteArrayInputStream(compile(xmlConfig)));
+
+            assertEquals(xmlConfig.getReportingPolicy().toString(),
+                    compiledConfig.getReportingPolicy().toString());
+            assertEquals(2 * domainCount, compiledConfig.getAllPolicies().size());
+            for (DomainPinningPolicy xmlPolicy : xmlConfig.getAllPolicies()) {
+                DomainPinningPolicy compiledPolicy =
+                        compiledConfig.getPolicyForHostname(xmlPolicy.getHostname());
+                assertNotNull(compiledPolicy);
+                assertEquals(xmlPolicy.toString(), compiledPolicy.toString());
+                assertEquals(xmlPolicy.getPublicKeyPins(), compiledPolicy.getPublicKeyPins());
+                assertEquals(xmlPolicy.getExpirationDate(), compiledPolicy.getExpirationDate());
+            }
+        }
+    }
+
+    @Test
+    public void testScriptCompiledPolicyMatchesXmlPolicy()
+            throws XmlPullParserException, IOException, CertificateException {
+        // compiled_policy.xml was compiled by trustkit-policy.gradle when building the tests
+        Context context = InstrumentationRegistry.getContext();
+        int xmlPolicyId = context.getResources().getIdentifier("compiled_policy", "xml",
+                context.getPackageName());
+        TrustKitConfiguration xmlConfig = TrustKitConfiguration.fromXmlPolicy(context,
+                context.getResources().getXml(xmlPolicyId));
+        InputStream compiledPolicyStream = context.getAssets().open("trustkit/compiled_policy.bin");
+        TrustKitConfiguration compiledConfig;
+        try {
+            compiledConfig = TrustKitConfiguration.fromCompiledPolicy(compiledPolicyStream);
+        } finally {
+            compiledPolicyStream.close();
+        }
+
+        ReportingPolicy xmlReportingPolicy = xmlConfig.getReportingPolicy();
+        ReportingPolicy compiledReportingPolicy = compiledConfig.getReportingPolicy();
+        assertEquals(xmlReportingPolicy.getReportBatchSize(),
+                compiledReportingPolicy.getReportBatchSize());
+        assertEquals(xmlReportingPolicy.getReportFlushInterval(),
+                compiledReportingPolicy.getReportFlushInterval());
+        assertEquals(xmlReportingPolicy.getReportSamplingRate(),
+                compiledReportingPolicy.getReportSamplingRate());
+
+        assertEquals(xmlConfig.shouldOverridePins(), compiledConfig.shouldOverridePins());
+        assertNotNull(compiledConfig.getDebugCaCertificates());
+        assertEquals(xmlConfig.getDebugCaCertificates(), compiledConfig.getDebugCaCertificates());
+
+        assertEquals(3, xmlConfig.getAllPolicies().size());
+        assertEquals(xmlConfig.getAllPolicies().size(), compiledConfig.getAllPolicies().size());
+        for (DomainPinningPolicy xmlPolicy : xmlConfig.getAllPolicies()) {
+            DomainPinningPolicy compiledPolicy =
+                    compiledConfig.getPolicyForHostname(xmlPolicy.getHostname());
+            assertNotNull(compiledPolicy);
+            assertEquals(xmlPolicy.getHostname(), compiledPolicy.getHostname());
+            assertEquals(xmlPolicy.shouldIncludeSubdomains(),
+                    compiledPolicy.shouldIncludeSubdomains());
+            assertEquals(xmlPolicy.getPublicKeyPins(), compiledPolicy.getPublicKeyPins());
+            assertEquals(xmlPolicy.shouldEnforcePinning(), compiledPolicy.shouldEnforcePinning());
+            assertEquals(xmlPolicy.getExpirationDate(), compiledPolicy.getExpirationDate());
+            assertEquals(xmlPolicy.getReportUris(), compiledPolicy.getReportUris());
+            assertEquals(xmlPolicy.getGzipReportUris(), compiledPolicy.getGzipReportUris());
+            assertEquals(xmlPolicy.getValidationCacheTtl(),
+                    compiledPolicy.getValidationCacheTtl());
+            assertEquals(xmlPolicy.getReportSamplingRate(),
+                    compiledPolicy.getReportSamplingRate());
+        }
+    }
+
+    @Test
+    public void testInvalidCompiledPolicy() throws CertificateException {
+        // Something that is not a compiled policy gets rejected, so the XML policy can be used
+        boolean didReceiveError = false;
+        try {
+            TrustKitConfiguration.fromCompiledPolicy(
+                    new ByteArrayInputStream("<?xml version=\"1.0\"?>".getBytes()));
+        } catch (IOException e) {
+            didReceiveError = true;
+        }
+        assertTrue(didReceiveError);
+    }
+
+    @Test
+    public void testTruncatedCompiledPolicy()
+            throws XmlPullParserException, IOException, CertificateException {
+        TrustKitConfiguration xmlConfig = TrustKitConfiguration.fromXmlPolicy(
+                InstrumentationRegistry.getContext(), parseXmlString(buildXmlPolicy(1)));
+        byte[] compiledPolicy = compile(xmlConfig);
+
+        boolean didReceiveError = false;
+        try {
+            TrustKitConfiguration.fromCompiledPolicy(
+                    new ByteArrayInputStream(compiledPolicy, 0, compiledPolicy.length - 1));
+        } catch (IOException e) {
+            didReceiveError = true;
+        }
+        assertTrue(didReceiveError);
+    }
+}
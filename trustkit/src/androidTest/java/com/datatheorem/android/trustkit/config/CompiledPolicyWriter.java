@@ -0,0 +1,115 @@
+package com.datatheorem.android.trustkit.config;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Set;
+
+
+/**
+ * Compiles an already-loaded configuration, so that tests can generate compiled policies of any
+ * size; Apps get their policy compiled by trustkit-policy.gradle instead.
+ */
+class CompiledPolicyWriter {
+
+    static void write(@NonNull TrustKitConfiguration configuration, @NonNull OutputStream stream)
+            throws IOException, CertificateEncodingException {
+        DataOutputStream output = new DataOutputStream(stream);
+        output.writeInt(CompiledPolicy.MAGIC);
+        output.writeInt(CompiledPolicy.VERSION);
+
+        ReportingPolicy reportingPolicy = configuration.getReportingPolicy();
+        writeInteger(output, reportingPolicy.getReportBatchSize());
+        writeInteger(output, reportingPolicy.getReportFlushInterval());
+        writeDouble(output, reportingPolicy.getReportSamplingRate());
+
+        output.writeBoolean(configuration.shouldOverridePins());
+        Set<Certificate> debugCaCertificates = configuration.getDebugCaCertificates();
+        if (debugCaCertificates == null) {
+            output.writeInt(0);
+        } else {
+            output.writeInt(debugCaCertificates.size());
+            for (Certificate certificate : debugCaCertificates) {
+                byte[] encodedCertificate = certificate.getEncoded();
+                output.writeInt(encodedCertificate.length);
+                output.write(encodedCertificate);
+            }
+        }
+
+        Set<DomainPinningPolicy> domainPolicies = configuration.getAllPolicies();
+        output.writeInt(domainPolicies.size());
+        for (DomainPinningPolicy domainPolicy : domainPolicies) {
+            writeDomainPolicy(output, domainPolicy);
+        }
+        output.flush();
+    }
+
+    private static void writeDomainPolicy(@NonNull DataOutputStream output,
+                                          @NonNull DomainPinningPolicy domainPolicy)
+            throws IOException {
+        output.writeUTF(domainPolicy.getHostname());
+        writeBoolean(output, domainPolicy.shouldIncludeSubdomains());
+
+        output.writeInt(domainPolicy.getPublicKeyPins().size());
+        for (PublicKeyPin pin : domainPolicy.getPublicKeyPins()) {
+            output.write(pin.toByteArray());
+        }
+
+        writeBoolean(output, domainPolicy.shouldEnforcePinning());
+
+        Date expirationDate = domainPolicy.getExpirationDate();
+        if (expirationDate == null) {
+            writeInteger(output, null);
+        } else {
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTime(expirationDate);
+            writeInteger(output, calendar.get(Calendar.YEAR) * 10000
+                    + (calendar.get(Calendar.MONTH) + 1) * 100
+                    + calendar.get(Calendar.DAY_OF_MONTH));
+        }
+
+        // The policy's report URIs already include the default report URI if it was enabled
+        output.writeBoolean(true);
+        output.writeInt(domainPolicy.getReportUris().size());
+        for (URL reportUri : domainPolicy.getReportUris()) {
+            output.writeUTF(reportUri.toString());
+            output.writeBoolean(domainPolicy.getGzipReportUris().contains(reportUri));
+        }
+        writeBoolean(output, true);
+
+        writeInteger(output, domainPolicy.getValidationCacheTtl());
+        writeDouble(output, domainPolicy.getReportSamplingRate());
+    }
+
+    private static void writeBoolean(@NonNull DataOutputStream output, @Nullable Boolean value)
+            throws IOException {
+        output.writeBoolean(value != null);
+        if (value != null) {
+            output.writeBoolean(value);
+        }
+    }
+
+    private static void writeInteger(@NonNull DataOutputStream output, @Nullable Integer value)
+            throws IOException {
+        output.writeBoolean(value != null);
+        if (value != null) {
+            output.writeInt(value);
+        }
+    }
+
+    private static void writeDouble(@NonNull DataOutputStream output, @Nullable Double value)
+            throws IOException {
+        output.writeBoolean(value != null);
+        if (value != null) {
+            output.writeDouble(value);
+        }
+    }
+}
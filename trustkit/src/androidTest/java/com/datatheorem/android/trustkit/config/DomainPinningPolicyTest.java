@@ -13,6 +13,7 @@ import java.util.HashSet;
 import java.util.Set;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertTrue;
 
 
@@ -33,10 +34,21 @@ public class DomainPinningPolicyTest {
 
     private final static Date date = new Date();
 
+    private static DomainPinningPolicy.Builder newPolicyBuilder(String hostname,
+                                                                Set<String> pins) {
+        return new DomainPinningPolicy.Builder()
+                .setHostname(hostname)
+                .setShouldIncludeSubdomains(true)
+                .setPublicKeyHashes(pins)
+                .setShouldEnforcePinning(true)
+                .setExpirationDate(date)
+                .setReportUris(reportUris)
+                .setShouldDisableDefaultReportUri(false);
+    }
+
     @Test
     public void testValidPolicy() throws MalformedURLException {
-        DomainPinningPolicy policy = new DomainPinningPolicy("www.test.com", true, pins, true,
-                date, reportUris, false);
+        DomainPinningPolicy policy = newPolicyBuilder("www.test.com", pins).build();
 
         assertEquals("www.test.com", policy.getHostname());
         assertEquals(date, policy.getExpirationDate());
@@ -62,8 +74,7 @@ public class DomainPinningPolicyTest {
 
     @Test
     public void testValidPolicyInternationalizeHostname() throws MalformedURLException {
-        DomainPinningPolicy policy = new DomainPinningPolicy("českárepublika.icom.museum", true,
-                pins, true, date, reportUris, false);
+        DomainPinningPolicy policy = newPolicyBuilder("českárepublika.icom.museum", pins).build();
 
         assertEquals(policy.getHostname(), "českárepublika.icom.museum");
     }
@@ -75,7 +86,7 @@ public class DomainPinningPolicyTest {
 
         boolean didReceiveConfigError = false;
         try {
-            new DomainPinningPolicy("www.test.com", true, badPins, true, date, reportUris, false);
+            newPolicyBuilder("www.test.com", badPins).build();
         } catch (ConfigurationException e) {
             if (e.getMessage().startsWith("Less than two pins")) {
                 didReceiveConfigError = true;
@@ -93,7 +104,7 @@ public class DomainPinningPolicyTest {
         boolean didReceivedConfigError = false;
 
         try {
-            new DomainPinningPolicy("www.test.com", true, emptyPins, true, date, reportUris, false);
+            newPolicyBuilder("www.test.com", emptyPins).build();
         } catch (ConfigurationException e) {
             if (e.getMessage().startsWith("An empty pin-set")) {
                 didReceivedConfigError = true;
@@ -109,7 +120,7 @@ public class DomainPinningPolicyTest {
     public void testBadPolicyPinTld() throws MalformedURLException {
         boolean didReceiveConfigError = false;
         try {
-            new DomainPinningPolicy("com", true, pins, true, date, reportUris, false);
+            newPolicyBuilder("com", pins).build();
         }
         catch (ConfigurationException e) {
             if (e.getMessage().startsWith("Tried to pin an invalid domain")) {
@@ -120,4 +131,26 @@ public class DomainPinningPolicyTest {
         }
         assertTrue(didReceiveConfigError);
     }
+
+    @Test
+    public void testEquals() throws MalformedURLException {
+        DomainPinningPolicy policy = newPolicyBuilder("www.test.com", pins).build();
+
+        // Policies with the same settings are equal
+        DomainPinningPolicy samePolicy = newPolicyBuilder("www.test.com", new HashSet<>(pins))
+                .setExpirationDate(new Date(date.getTime()))
+                .setReportUris(new HashSet<>(reportUris))
+                .build();
+        assertEquals(policy, samePolicy);
+        assertEquals(policy.hashCode(), samePolicy.hashCode());
+
+        // But not if any setting changed
+        Set<String> otherPins = new HashSet<>(pins);
+        otherPins.add("BBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBB=");
+        assertFalse(policy.equals(newPolicyBuilder("www.test.com", otherPins).build()));
+        assertFalse(policy.equals(newPolicyBuilder("www.test.com", pins)
+                .setShouldDisableDefaultReportUri(true).build()));
+        assertFalse(policy.equals(newPolicyBuilder("www.test.com", pins)
+                .setExpirationDate(null).build()));
+    }
 }
@@ -0,0 +1,75 @@
+package com.datatheorem.android.trustkit.config;
+
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+
+@RunWith(AndroidJUnit4.class)
+public class HostnameValidatorTest {
+
+    private static final String[] validHostnames = new String[] {
+            "www.datatheorem.com",
+            "datatheorem.com",
+            "DataTheorem.COM",
+            "www.datatheorem.com.",
+            "1.datatheorem.com",
+            "sub-domain.datatheorem.co.uk",
+            "xn--80ak6aa92e.com",
+            "českárepublika.icom.museum",
+    };
+
+    private static final String[] invalidHostnames = new String[] {
+            "",
+            ".",
+            "com",
+            "localhost",
+            "https://www.datatheorem.com",
+            "www.datatheorem.com/path",
+            "www..datatheorem.com",
+            ".datatheorem.com",
+            "www.datatheorem.com..",
+            "-www.datatheorem.com",
+            "www-.datatheorem.com",
+            "www.datatheorem.notarealtld",
+            "www.datatheorem.1com",
+            "192.168.1.1",
+            "www_1.datatheorem.com",
+            "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa.com",
+    };
+
+    @Test
+    public void testValidHostnames() {
+        for (String hostname : validHostnames) {
+            assertTrue(hostname, HostnameValidator.isValid(hostname));
+            // Second lookup is served from the cache
+            assertTrue(hostname, HostnameValidator.isValid(hostname));
+        }
+    }
+
+    @Test
+    public void testInvalidHostnames() {
+        for (String hostname : invalidHostnames) {
+            assertFalse(hostname, HostnameValidator.isValid(hostname));
+        }
+    }
+
+    @Test
+    public void testSameResultAsDomainValidator() {
+        DomainValidator domainValidator = DomainValidator.getInstance(false);
+        for (String hostname : validHostnames) {
+            assertEquals(hostname, domainValidator.isValid(hostname),
+                    HostnameValidator.isValid(hostname));
+        }
+        for (String hostname : invalidHostnames) {
+            assertEquals(hostname, domainValidator.isValid(hostname),
+                    HostnameValidator.isValid(hostname));
+        }
+    }
+}
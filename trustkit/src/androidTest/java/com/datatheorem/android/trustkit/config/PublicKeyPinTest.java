@@ -2,6 +2,7 @@ package com.datatheorem.android.trustkit.config;
 
 
 import android.support.test.runner.AndroidJUnit4;
+import android.util.Base64;
 
 import com.datatheorem.android.trustkit.CertificateUtils;
 import com.datatheorem.android.trustkit.config.PublicKeyPin;
@@ -13,6 +14,7 @@ import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertTrue;
 
 
@@ -51,6 +53,28 @@ public class PublicKeyPinTest {
         assertEquals(pin.toString(),"rFjc3wG7lTZe43zeYTvPq8k4xdDEutCmIhI5dn4oCeE=");
     }
 
+    @Test
+    public void testEquals() {
+        Certificate cert = CertificateUtils.testCertChain.get(0);
+        PublicKeyPin pinFromCertificate = new PublicKeyPin(cert);
+        PublicKeyPin pinFromString = new PublicKeyPin(pinFromCertificate.toString());
+        assertEquals(pinFromCertificate, pinFromString);
+        assertEquals(pinFromCertificate.hashCode(), pinFromString.hashCode());
+
+        PublicKeyPin otherPin = new PublicKeyPin(CertificateUtils.testCertChain.get(1));
+        assertFalse(pinFromCertificate.equals(otherPin));
+        assertFalse(pinFromCertificate.equals(pinFromCertificate.toString()));
+    }
+
+    @Test
+    public void testToByteArray() {
+        byte[] spkiHash = new PublicKeyPin("rFjc3wG7lTZe43zeYTvPq8k4xdDEutCmIhI5dn4oCeE=")
+                .toByteArray();
+        assertEquals(32, spkiHash.length);
+        assertEquals("rFjc3wG7lTZe43zeYTvPq8k4xdDEutCmIhI5dn4oCeE=",
+                Base64.encodeToString(spkiHash, Base64.NO_WRAP));
+    }
+
     @Test
     public void testFromBadStringNotBase64() {
         boolean didReturnError = false;
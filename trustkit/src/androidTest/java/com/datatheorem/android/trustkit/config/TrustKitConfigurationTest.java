@@ -13,6 +13,7 @@ import org.xmlpull.v1.XmlPullParserFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
@@ -22,6 +23,7 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Locale;
+import java.util.Set;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
@@ -172,6 +174,51 @@ public class TrustKitConfigurationTest {
         assertTrue(domainConfig.shouldEnforcePinning());
     }
 
+    @Test
+    public void testValidationCacheTtl() throws XmlPullParserException, IOException,
+            ParseException, CertificateException {
+        Context context = InstrumentationRegistry.getContext();
+        String xml = "" +
+                "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
+                "<network-security-config>\n" +
+                "    <domain-config>\n" +
+                "        <domain>www.datatheorem.com</domain>\n" +
+                "        <pin-set>\n" +
+                "            <pin digest=\"SHA-256\">AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=</pin>\n" +
+                "            <pin digest=\"SHA-256\">grX4Ta9HpZx6tSHkmCrvpApTQGo67CYDnvprLg5yRME=</pin>\n" +
+                "        </pin-set>\n" +
+                "        <trustkit-config validationCacheTtl=\"300\">\n" +
+                "        </trustkit-config>\n" +
+                "        <domain-config>\n" +
+                "            <domain>other.datatheorem.com</domain>\n" +
+                "        </domain-config>\n" +
+                "    </domain-config>\n" +
+                "    <domain-config>\n" +
+                "        <domain>www.google.com</domain>\n" +
+                "        <pin-set>\n" +
+                "            <pin digest=\"SHA-256\">AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=</pin>\n" +
+                "            <pin digest=\"SHA-256\">grX4Ta9HpZx6tSHkmCrvpApTQGo67CYDnvprLg5yRME=</pin>\n" +
+                "        </pin-set>\n" +
+                "    </domain-config>\n" +
+                "</network-security-config>";
+        TrustKitConfiguration config = TrustKitConfiguration.fromXmlPolicy(context,
+                parseXmlString(xml));
+
+        DomainPinningPolicy domainConfig = config.getPolicyForHostname("www.datatheorem.com");
+        assertNotNull(domainConfig);
+        assertEquals(300, domainConfig.getValidationCacheTtl());
+
+        // The setting is inherited by nested domain-config tags
+        domainConfig = config.getPolicyForHostname("other.datatheorem.com");
+        assertNotNull(domainConfig);
+        assertEquals(300, domainConfig.getValidationCacheTtl());
+
+        // And disabled by default
+        domainConfig = config.getPolicyForHostname("www.google.com");
+        assertNotNull(domainConfig);
+        assertEquals(0, domainConfig.getValidationCacheTtl());
+    }
+
 
     @Test
     public void testExpirationDate() throws XmlPullParserException, IOException,
@@ -352,4 +399,285 @@ public class TrustKitConfigurationTest {
         }};
         assertEquals(expectedUnrelatedUri, domainConfig.getReportUris());
     }
+
+    @Test
+    public void testGzipReportUri() throws XmlPullParserException, IOException,
+            CertificateException {
+        Context context = InstrumentationRegistry.getContext();
+        String xml = "" +
+                "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
+                "<network-security-config>\n" +
+                "    <domain-config>\n" +
+                "        <domain>www.datatheorem.com</domain>\n" +
+                "        <pin-set>\n" +
+                "            <pin digest=\"SHA-256\">AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=</pin>\n" +
+                "            <pin digest=\"SHA-256\">grX4Ta9HpZx6tSHkmCrvpApTQGo67CYDnvprLg5yRME=</pin>\n" +
+                "        </pin-set>\n" +
+                "        <trustkit-config>\n" +
+                "            <report-uri gzip=\"true\">https://some.reportdomain.com/</report-uri>\n" +
+                "            <report-uri>https://other.reportdomain.com/</report-uri>\n" +
+                "        </trustkit-config>\n" +
+                "        <domain-config>\n" +
+                "            <domain>other.datatheorem.com</domain>\n" +
+                "        </domain-config>\n" +
+                "    </domain-config>\n" +
+                "</network-security-config>";
+        TrustKitConfiguration config = TrustKitConfiguration.fromXmlPolicy(context,
+                parseXmlString(xml));
+
+        DomainPinningPolicy domainConfig = config.getPolicyForHostname("www.datatheorem.com");
+        assertNotNull(domainConfig);
+        assertEquals(3, domainConfig.getReportUris().size());
+        HashSet<URL> expectedGzipReportUris = new HashSet<>();
+        expectedGzipReportUris.add(new URL("https://some.reportdomain.com/"));
+        assertEquals(expectedGzipReportUris, domainConfig.getGzipReportUris());
+
+        // The setting is inherited along with the report URIs
+        domainConfig = config.getPolicyForHostname("other.datatheorem.com");
+        assertNotNull(domainConfig);
+        assertEquals(expectedGzipReportUris, domainConfig.getGzipReportUris());
+    }
+
+    @Test
+    public void testReportingPolicy() throws XmlPullParserException, IOException,
+            CertificateException {
+        Context context = InstrumentationRegistry.getContext();
+        String xml = "" +
+                "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
+                "<network-security-config>\n" +
+                "    <trustkit-config reportBatchSize=\"20\" reportFlushInterval=\"60\">\n" +
+                "    </trustkit-config>\n" +
+                "    <domain-config>\n" +
+                "        <domain>www.datatheorem.com</domain>\n" +
+                "        <pin-set>\n" +
+                "            <pin digest=\"SHA-256\">AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=</pin>\n" +
+                "            <pin digest=\"SHA-256\">grX4Ta9HpZx6tSHkmCrvpApTQGo67CYDnvprLg5yRME=</pin>\n" +
+                "        </pin-set>\n" +
+                "        <trustkit-config enforcePinning=\"true\">\n" +
+                "        </trustkit-config>\n" +
+                "    </domain-config>\n" +
+                "</network-security-config>";
+        TrustKitConfiguration config = TrustKitConfiguration.fromXmlPolicy(context,
+                parseXmlString(xml));
+
+        ReportingPolicy reportingPolicy = config.getReportingPolicy();
+        assertEquals(20, reportingPolicy.getReportBatchSize());
+        assertEquals(60, reportingPolicy.getReportFlushInterval());
+
+        // The domain's trustkit-config tag is still parsed
+        DomainPinningPolicy domainConfig = config.getPolicyForHostname("www.datatheorem.com");
+        assertNotNull(domainConfig);
+        assertTrue(domainConfig.shouldEnforcePinning());
+    }
+
+    @Test
+    public void testDefaultReportingPolicy() throws XmlPullParserException, IOException,
+            CertificateException {
+        Context context = InstrumentationRegistry.getContext();
+        String xml = "" +
+                "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
+                "<network-security-config>\n" +
+                "    <domain-config>\n" +
+                "        <domain>www.datatheorem.com</domain>\n" +
+                "        <pin-set>\n" +
+                "            <pin digest=\"SHA-256\">AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=</pin>\n" +
+                "            <pin digest=\"SHA-256\">grX4Ta9HpZx6tSHkmCrvpApTQGo67CYDnvprLg5yRME=</pin>\n" +
+                "        </pin-set>\n" +
+                "    </domain-config>\n" +
+                "</network-security-config>";
+        TrustKitConfiguration config = TrustKitConfiguration.fromXmlPolicy(context,
+                parseXmlString(xml));
+
+        // One report per request, sent right away
+        assertEquals(1, config.getReportingPolicy().getReportBatchSize());
+        assertEquals(0, config.getReportingPolicy().getReportFlushInterval());
+    }
+
+    @Test
+    public void testReportSamplingRate() throws XmlPullParserException, IOException,
+            CertificateException {
+        Context context = InstrumentationRegistry.getContext();
+        String xml = "" +
+                "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
+                "<network-security-config>\n" +
+                "    <trustkit-config reportSamplingRate=\"0.5\">\n" +
+                "    </trustkit-config>\n" +
+                "    <domain-config>\n" +
+                "        <domain>datatheorem.com</domain>\n" +
+                "        <pin-set>\n" +
+                "            <pin digest=\"SHA-256\">AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=</pin>\n" +
+                "            <pin digest=\"SHA-256\">grX4Ta9HpZx6tSHkmCrvpApTQGo67CYDnvprLg5yRME=</pin>\n" +
+                "        </pin-set>\n" +
+                "        <trustkit-config reportSamplingRate=\"0.1\">\n" +
+                "        </trustkit-config>\n" +
+                "        <domain-config>\n" +
+                "            <domain>www.datatheorem.com</domain>\n" +
+                "        </domain-config>\n" +
+                "    </domain-config>\n" +
+                "    <domain-config>\n" +
+                "        <domain>www.google.com</domain>\n" +
+                "        <pin-set>\n" +
+                "            <pin digest=\"SHA-256\">AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=</pin>\n" +
+                "            <pin digest=\"SHA-256\">grX4Ta9HpZx6tSHkmCrvpApTQGo67CYDnvprLg5yRME=</pin>\n" +
+                "        </pin-set>\n" +
+                "    </domain-config>\n" +
+                "</network-security-config>";
+        TrustKitConfiguration config = TrustKitConfiguration.fromXmlPolicy(context,
+                parseXmlString(xml));
+
+        assertEquals(0.5, config.getReportingPolicy().getReportSamplingRate());
+
+        // The domain's sampling rate is inherited by nested domain-config tags
+        assertEquals(0.1, config.getPolicyForHostname("datatheorem.com").getReportSamplingRate());
+        assertEquals(0.1,
+                config.getPolicyForHostname("www.datatheorem.com").getReportSamplingRate());
+
+        // Domains without a sampling rate use the global one
+        assertNull(config.getPolicyForHostname("www.google.com").getReportSamplingRate());
+    }
+
+    @Test
+    public void testInvalidReportSamplingRate() throws XmlPullParserException, IOException,
+            CertificateException {
+        Context context = InstrumentationRegistry.getContext();
+        String xml = "" +
+                "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
+                "<network-security-config>\n" +
+                "    <domain-config>\n" +
+                "        <domain>www.datatheorem.com</domain>\n" +
+                "        <pin-set>\n" +
+                "            <pin digest=\"SHA-256\">AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=</pin>\n" +
+                "            <pin digest=\"SHA-256\">grX4Ta9HpZx6tSHkmCrvpApTQGo67CYDnvprLg5yRME=</pin>\n" +
+                "        </pin-set>\n" +
+                "        <trustkit-config reportSamplingRate=\"1.5\">\n" +
+                "        </trustkit-config>\n" +
+                "    </domain-config>\n" +
+                "</network-security-config>";
+
+        boolean didReceiveConfigError = false;
+        try {
+            TrustKitConfiguration.fromXmlPolicy(context, parseXmlString(xml));
+        } catch (ConfigurationException e) {
+            if (e.getMessage().startsWith("Invalid reportSamplingRate")) {
+                didReceiveConfigError = true;
+            }
+        }
+        assertTrue(didReceiveConfigError);
+    }
+
+    @Test
+    public void testInvalidReportBatchSize() throws XmlPullParserException, IOException,
+            CertificateException {
+        Context context = InstrumentationRegistry.getContext();
+        String xml = "" +
+                "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
+                "<network-security-config>\n" +
+                "    <trustkit-config reportBatchSize=\"0\">\n" +
+                "    </trustkit-config>\n" +
+                "    <domain-config>\n" +
+                "        <domain>www.datatheorem.com</domain>\n" +
+                "        <pin-set>\n" +
+                "            <pin digest=\"SHA-256\">AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=</pin>\n" +
+                "            <pin digest=\"SHA-256\">grX4Ta9HpZx6tSHkmCrvpApTQGo67CYDnvprLg5yRME=</pin>\n" +
+                "        </pin-set>\n" +
+                "    </domain-config>\n" +
+                "</network-security-config>";
+
+        boolean didReceiveConfigError = false;
+        try {
+            TrustKitConfiguration.fromXmlPolicy(context, parseXmlString(xml));
+        } catch (ConfigurationException e) {
+            if (e.getMessage().startsWith("Invalid reportBatchSize")) {
+                didReceiveConfigError = true;
+            }
+        }
+        assertTrue(didReceiveConfigError);
+    }
+
+    @Test
+    public void testSameDomainDefinedTwice() throws XmlPullParserException, IOException,
+            CertificateException {
+        Context context = InstrumentationRegistry.getContext();
+        String domainConfig = "" +
+                "    <domain-config>\n" +
+                "        <domain>www.datatheorem.com</domain>\n" +
+                "        <pin-set>\n" +
+                "            <pin digest=\"SHA-256\">AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=</pin>\n" +
+                "            <pin digest=\"SHA-256\">grX4Ta9HpZx6tSHkmCrvpApTQGo67CYDnvprLg5yRME=</pin>\n" +
+                "        </pin-set>\n" +
+                "    </domain-config>\n";
+        String xml = "" +
+                "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
+                "<network-security-config>\n" +
+                domainConfig +
+                domainConfig +
+                "</network-security-config>";
+
+        // Two identical domain-configs are rejected too
+        boolean didReceiveConfigError = false;
+        try {
+            TrustKitConfiguration.fromXmlPolicy(context, parseXmlString(xml));
+        } catch (ConfigurationException e) {
+            if (e.getMessage().startsWith("Policy contains the same domain defined twice")) {
+                didReceiveConfigError = true;
+            }
+        }
+        assertTrue(didReceiveConfigError);
+    }
+
+    @Test
+    public void testPolicyLookupMatchesLinearScan() throws MalformedURLException {
+        final HashSet<String> pins = new HashSet<String>() {{
+            add("AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=");
+            add("grX4Ta9HpZx6tSHkmCrvpApTQGo67CYDnvprLg5yRME=");
+        }};
+        // Nested domains, with and without includeSubdomains
+        String[][] domains = {
+                { "example.com", "true" },
+                { "api.example.com", "false" },
+                { "v1.api.example.com", "true" },
+                { "other.org", "false" },
+                { "a.other.org", "true" },
+        };
+        HashSet<DomainPinningPolicy> domainPolicies = new HashSet<>();
+        for (String[] domain : domains) {
+            domainPolicies.add(new DomainPinningPolicy.Builder()
+                    .setHostname(domain[0])
+                    .setShouldIncludeSubdomains(Boolean.parseBoolean(domain[1]))
+                    .setPublicKeyHashes(pins)
+                    .setShouldDisableDefaultReportUri(true)
+                    .build());
+        }
+        TrustKitConfiguration config = new TestableTrustKitConfiguration(domainPolicies);
+
+        String[] hostnames = {
+                "example.com", "www.example.com", "api.example.com", "www.api.example.com",
+                "v1.api.example.com", "www.v1.api.example.com", "a.b.v1.api.example.com",
+                "notexample.com", "example.org", "com", "other.org", "www.other.org",
+                "a.other.org", "www.a.other.org",
+        };
+        for (String hostname : hostnames) {
+            assertEquals(hostname, findPolicyByLinearScan(domainPolicies, hostname),
+                    config.getPolicyForHostname(hostname));
+        }
+    }
+
+    // How the policy for a hostname was looked up before the policies got indexed by domain:
+    // an exact match, or else the longest domain that includes subdomains
+    private static DomainPinningPolicy findPolicyByLinearScan(
+            Set<DomainPinningPolicy> domainPolicies, String hostname) {
+        DomainPinningPolicy bestMatchPolicy = null;
+        for (DomainPinningPolicy domainPolicy : domainPolicies) {
+            String domain = domainPolicy.getHostname();
+            if (domain.equals(hostname)) {
+                return domainPolicy;
+            }
+            if (domainPolicy.shouldIncludeSubdomains() && hostname.endsWith("." + domain)
+                    && ((bestMatchPolicy == null)
+                    || (domain.length() > bestMatchPolicy.getHostname().length()))) {
+                bestMatchPolicy = domainPolicy;
+            }
+        }
+        return bestMatchPolicy;
+    }
 }
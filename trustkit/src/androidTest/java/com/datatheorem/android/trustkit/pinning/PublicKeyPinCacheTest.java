@@ -0,0 +1,56 @@
+package com.datatheorem.android.trustkit.pinning;
+
+
+import android.support.test.runner.AndroidJUnit4;
+
+import com.datatheorem.android.trustkit.config.PublicKeyPin;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.security.cert.Certificate;
+
+import static com.datatheorem.android.trustkit.CertificateUtils.certificateFromPem;
+import static com.datatheorem.android.trustkit.CertificateUtils.testCertChain;
+import static com.datatheorem.android.trustkit.CertificateUtils.testCertChainPem;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
+
+
+@RunWith(AndroidJUnit4.class)
+public class PublicKeyPinCacheTest {
+
+    @Test
+    public void testHitAndMiss() {
+        PublicKeyPinCache cache = new PublicKeyPinCache(PublicKeyPinCache.DEFAULT_MAX_SIZE);
+        Certificate leaf = testCertChain.get(0);
+
+        // The first lookup has to compute the pin
+        PublicKeyPin pin = cache.getPin(leaf);
+        assertEquals(new PublicKeyPin(leaf), pin);
+        assertEquals(0, cache.hitCount());
+        assertEquals(1, cache.missCount());
+
+        // A different instance of the same certificate should be served from the cache
+        Certificate sameLeaf = certificateFromPem(testCertChainPem.get(0));
+        assertSame(pin, cache.getPin(sameLeaf));
+        assertEquals(1, cache.hitCount());
+        assertEquals(1, cache.missCount());
+
+        // Another certificate is a miss
+        assertEquals(new PublicKeyPin(testCertChain.get(1)), cache.getPin(testCertChain.get(1)));
+        assertEquals(1, cache.hitCount());
+        assertEquals(2, cache.missCount());
+    }
+
+    @Test
+    public void testBounded() {
+        PublicKeyPinCache cache = new PublicKeyPinCache(1);
+        cache.getPin(testCertChain.get(0));
+        cache.getPin(testCertChain.get(1));
+
+        // The first certificate should have been evicted
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.evictionCount());
+    }
+}
@@ -0,0 +1,164 @@
+package com.datatheorem.android.trustkit.pinning;
+
+import android.os.Build;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.datatheorem.android.trustkit.TestableTrustKit;
+import com.datatheorem.android.trustkit.config.DomainPinningPolicy;
+import com.datatheorem.android.trustkit.reporting.BackgroundReporter;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.cert.X509Certificate;
+import java.util.List;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLHandshakeException;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+
+/**
+ * Tests the SSLEngines created by TrustKit, by doing handshakes with live websites.
+ */
+@SuppressWarnings("unchecked")
+@RunWith(AndroidJUnit4.class)
+public class SSLEngineTest {
+
+    @Mock
+    private BackgroundReporter mockReporter;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        TestableTrustKit.reset();
+    }
+
+    @Test
+    public void testPinnedDomainSuccess() throws IOException {
+        String serverHostname = "www.datatheorem.com";
+        TestableTrustKit.initializeWithNetworkSecurityConfiguration(
+                InstrumentationRegistry.getContext(), mockReporter);
+
+        // Create a TrustKit SSLEngine and ensure the handshake succeeds
+        SSLEngine test = TestableTrustKit.getInstance().createSSLEngine(serverHostname, 443);
+        assertTrue(test.getUseClientMode());
+        doHandshake(test, serverHostname, 443);
+        assertEquals(SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING, test.getHandshakeStatus());
+
+        // Ensure the background reporter was NOT called
+        verify(mockReporter, never()).pinValidationFailed(
+                anyString(),
+                anyInt(),
+                (List<X509Certificate>) any(),
+                (List<X509Certificate>) any(),
+                any(DomainPinningPolicy.class),
+                any(PinningValidationResult.class)
+        );
+    }
+
+    @Test
+    public void testPinnedDomainInvalidPin() throws IOException {
+        if (Build.VERSION.SDK_INT < 17) {
+            // TrustKit does not do anything for API level < 17 hence the handshake will succeed
+            return;
+        }
+
+        String serverHostname = "www.yahoo.com";
+        TestableTrustKit.initializeWithNetworkSecurityConfiguration(
+                InstrumentationRegistry.getContext(), mockReporter);
+
+        // Create a TrustKit SSLEngine and ensure the handshake fails
+        SSLEngine test = TestableTrustKit.getInstance().createSSLEngine(serverHostname, 443);
+        boolean didReceiveHandshakeError = false;
+        try {
+            doHandshake(test, serverHostname, 443);
+        } catch (SSLHandshakeException e) {
+            didReceiveHandshakeError = true;
+        }
+        assertTrue(didReceiveHandshakeError);
+
+        // Ensure the background reporter was called
+        verify(mockReporter).pinValidationFailed(
+                eq(serverHostname),
+                eq(0),
+                (List<X509Certificate>) org.mockito.Matchers.isNotNull(),
+                (List<X509Certificate>) org.mockito.Matchers.isNotNull(),
+                eq(TestableTrustKit.getInstance().getConfiguration().getPolicyForHostname(serverHostname)),
+                eq(PinningValidationResult.FAILED)
+        );
+    }
+
+    // Run the engine's handshake over a blocking channel, which is enough for testing
+    private static void doHandshake(SSLEngine engine, String serverHostname, int serverPort)
+            throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(serverHostname, serverPort));
+        try {
+            int bufferSize = engine.getSession().getPacketBufferSize();
+            ByteBuffer appData = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+            ByteBuffer netOut = ByteBuffer.allocate(bufferSize);
+            ByteBuffer netIn = ByteBuffer.allocate(bufferSize);
+            // Nothing was received yet
+            netIn.flip();
+
+            engine.beginHandshake();
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            while ((status != SSLEngineResult.HandshakeStatus.FINISHED)
+                    && (status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING)) {
+                switch (status) {
+                    case NEED_WRAP:
+                        netOut.clear();
+                        status = engine.wrap(ByteBuffer.allocate(0), netOut).getHandshakeStatus();
+                        netOut.flip();
+                        while (netOut.hasRemaining()) {
+                            channel.write(netOut);
+                        }
+                        break;
+
+                    case NEED_UNWRAP:
+                        SSLEngineResult result = engine.unwrap(netIn, appData);
+                        status = result.getHandshakeStatus();
+                        if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                            // Read more data from the server
+                            netIn.compact();
+                            if (channel.read(netIn) < 0) {
+                                throw new IOException("Connection closed during the handshake");
+                            }
+                            netIn.flip();
+                        }
+                        break;
+
+                    case NEED_TASK:
+                        Runnable task;
+                        while ((task = engine.getDelegatedTask()) != null) {
+                            task.run();
+                        }
+                        status = engine.getHandshakeStatus();
+                        break;
+
+                    default:
+                        throw new IllegalStateException("Unexpected handshake status " + status);
+                }
+            }
+        } finally {
+            channel.close();
+        }
+    }
+}
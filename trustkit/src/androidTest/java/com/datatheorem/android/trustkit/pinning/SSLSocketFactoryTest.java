@@ -8,6 +8,7 @@ import android.support.test.runner.AndroidJUnit4;
 import com.datatheorem.android.trustkit.CertificateUtils;
 import com.datatheorem.android.trustkit.TestableTrustKit;
 import com.datatheorem.android.trustkit.config.DomainPinningPolicy;
+import com.datatheorem.android.trustkit.config.TestableTrustKitConfiguration;
 import com.datatheorem.android.trustkit.reporting.BackgroundReporter;
 
 import org.junit.Before;
@@ -23,6 +24,7 @@ import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.SSLSocketFactory;
@@ -683,4 +685,136 @@ public class SSLSocketFactoryTest {
         );
     }
     //endregion
+
+    //region Tests for the multi-host SSLSocketFactory
+    @Test
+    public void testMultiHostInvalidPinAndNonPinnedDomain() throws IOException {
+        if (Build.VERSION.SDK_INT < 24) {
+            // X509ExtendedTrustManager is not available before Android N
+            return;
+        }
+        TestableTrustKit.initializeWithNetworkSecurityConfiguration(
+                InstrumentationRegistry.getContext(), mockReporter);
+
+        // Use the same SocketFactory for both servers
+        SSLSocketFactory test = TestableTrustKit.getInstance().getSSLSocketFactory();
+
+        // Ensure the connection to the pinned domain fails
+        String pinnedHostname = "www.yahoo.com";
+        boolean didReceivePinningError = false;
+        try {
+            test.createSocket(pinnedHostname, 443).getInputStream();
+        } catch (SSLHandshakeException e) {
+            if ((e.getCause() instanceof CertificateException
+                    && (e.getCause().getMessage().startsWith("Pin verification failed")))) {
+                didReceivePinningError = true;
+            }
+        }
+        assertTrue(didReceivePinningError);
+
+        // Ensure the background reporter was called
+        verify(mockReporter).pinValidationFailed(
+                eq(pinnedHostname),
+                eq(0),
+                (List<X509Certificate>) org.mockito.Matchers.isNotNull(),
+                (List<X509Certificate>) org.mockito.Matchers.isNotNull(),
+                eq(TestableTrustKit.getInstance().getConfiguration().getPolicyForHostname(pinnedHostname)),
+                eq(PinningValidationResult.FAILED)
+        );
+
+        // Ensure the connection to the non-pinned domain succeeds
+        Socket socket = test.createSocket("www.google.com", 443);
+        socket.getInputStream();
+        assertTrue(socket.isConnected());
+        socket.close();
+    }
+
+    @Test
+    public void testMultiHostPinnedDomainSuccess() throws IOException {
+        if (Build.VERSION.SDK_INT < 24) {
+            // X509ExtendedTrustManager is not available before Android N
+            return;
+        }
+        String serverHostname = "www.datatheorem.com";
+        TestableTrustKit.initializeWithNetworkSecurityConfiguration(
+                InstrumentationRegistry.getContext(), mockReporter);
+
+        // Create a TrustKit SocketFactory and ensure the connection succeeds
+        SSLSocketFactory test = TestableTrustKit.getInstance().getSSLSocketFactory();
+        Socket socket = test.createSocket(serverHostname, 443);
+        socket.getInputStream();
+
+        assertTrue(socket.isConnected());
+        socket.close();
+
+        // Ensure the background reporter was NOT called
+        verify(mockReporter, never()).pinValidationFailed(
+                anyString(),
+                anyInt(),
+                (List<X509Certificate>) any(),
+                (List<X509Certificate>) any(),
+                any(DomainPinningPolicy.class),
+                any(PinningValidationResult.class)
+        );
+    }
+    //endregion
+
+    //region Tests for when the configuration was replaced at runtime
+    private void assertPinVerificationFails(String serverHostname) throws IOException {
+        SSLSocketFactory test = TestableTrustKit.getInstance().getSSLSocketFactory(serverHostname);
+        boolean didReceivePinningError = false;
+        try {
+            test.createSocket(serverHostname, 443).getInputStream();
+        } catch (SSLHandshakeException e) {
+            if ((e.getCause() instanceof CertificateException
+                    && (e.getCause().getMessage().startsWith("Pin verification failed")))) {
+                didReceivePinningError = true;
+            }
+        }
+        assertTrue(didReceivePinningError);
+    }
+
+    @Test
+    public void testSetConfigurationInvalidPin() throws IOException {
+        if (Build.VERSION.SDK_INT < 17) {
+            // TrustKit does not do anything for API level < 17 hence the connection will succeed
+            return;
+        }
+        TestableTrustKit.initializeWithNetworkSecurityConfiguration(
+                InstrumentationRegistry.getContext(), mockReporter);
+
+        // Rotate the pins of a domain of the manifest's policy to pins that do not match its chain,
+        // and pin a domain that is not in the manifest's policy
+        final HashSet<String> invalidPins = new HashSet<String>() {{
+            add("AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=");
+            add("BBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBB=");
+        }};
+        Set<DomainPinningPolicy> newPolicies = new HashSet<>();
+        newPolicies.add(new DomainPinningPolicy.Builder()
+                .setHostname("www.datatheorem.com")
+                .setPublicKeyHashes(invalidPins)
+                .setShouldEnforcePinning(true)
+                .build());
+        newPolicies.add(new DomainPinningPolicy.Builder()
+                .setHostname("www.google.com")
+                .setPublicKeyHashes(invalidPins)
+                .setShouldEnforcePinning(true)
+                .build());
+        TestableTrustKit.getInstance().setConfiguration(
+                new TestableTrustKitConfiguration(newPolicies));
+
+        // The new pins are enforced by TrustKit, including on Android N and later
+        assertPinVerificationFails("www.datatheorem.com");
+        assertPinVerificationFails("www.google.com");
+        verify(mockReporter).pinValidationFailed(
+                eq("www.google.com"),
+                eq(0),
+                (List<X509Certificate>) org.mockito.Matchers.isNotNull(),
+                (List<X509Certificate>) org.mockito.Matchers.isNotNull(),
+                eq(TestableTrustKit.getInstance().getConfiguration().getPolicyForHostname(
+                        "www.google.com")),
+                eq(PinningValidationResult.FAILED)
+        );
+    }
+    //endregion
 }
@@ -10,7 +10,9 @@ public class TestableTrustManagerBuilder extends TrustManagerBuilder {
     }
 
     public static void reset() {
-        baselineTrustManager = null;
+        isInitialized = false;
+        manifestConfiguration = null;
+        debugOverridesTrustManager = null;
         shouldOverridePins = false;
     }
 }
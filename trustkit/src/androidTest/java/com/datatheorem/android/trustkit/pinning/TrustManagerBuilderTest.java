@@ -0,0 +1,143 @@
+package com.datatheorem.android.trustkit.pinning;
+
+import android.os.Build;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.datatheorem.android.trustkit.TestableTrustKit;
+import com.datatheorem.android.trustkit.TrustKit;
+import com.datatheorem.android.trustkit.config.DomainPinningPolicy;
+import com.datatheorem.android.trustkit.config.PublicKeyPin;
+import com.datatheorem.android.trustkit.config.TestableTrustKitConfiguration;
+import com.datatheorem.android.trustkit.reporting.BackgroundReporter;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.net.MalformedURLException;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.net.ssl.X509TrustManager;
+
+import static com.datatheorem.android.trustkit.CertificateUtils.testCertChain;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+
+@RunWith(AndroidJUnit4.class)
+public class TrustManagerBuilderTest {
+
+    @Mock
+    private BackgroundReporter mockReporter;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        TestableTrustKit.reset();
+    }
+
+    @Test
+    public void testPinningTrustManagerIsReused() {
+        if (Build.VERSION.SDK_INT < 17) {
+            // No pinning validation at all for API level before 17
+            return;
+        }
+        TestableTrustKit.initializeWithNetworkSecurityConfiguration(
+                InstrumentationRegistry.getContext(), mockReporter);
+
+        // The same trust manager is returned for the same pinned hostname
+        X509TrustManager trustManager = TrustManagerBuilder.getTrustManager("www.datatheorem.com");
+        assertTrue(trustManager instanceof PinningTrustManager);
+        assertSame(trustManager, TrustManagerBuilder.getTrustManager("www.datatheorem.com"));
+
+        // But not for a different hostname
+        assertNotSame(trustManager, TrustManagerBuilder.getTrustManager("www.yahoo.com"));
+
+        // A new trust manager is created once TrustKit has been re-initialized
+        TestableTrustKit.reset();
+        TestableTrustKit.initializeWithNetworkSecurityConfiguration(
+                InstrumentationRegistry.getContext(), mockReporter);
+        assertNotSame(trustManager, TrustManagerBuilder.getTrustManager("www.datatheorem.com"));
+    }
+
+    private static DomainPinningPolicy buildPolicy(String hostname, final String backupPin)
+            throws MalformedURLException {
+        return new DomainPinningPolicy.Builder()
+                .setHostname(hostname)
+                .setShouldEnforcePinning(true)
+                .setPublicKeyHashes(new HashSet<String>() {{
+                    add("AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=");
+                    add(backupPin);
+                }})
+                .build();
+    }
+
+    @Test
+    public void testSetConfiguration() throws MalformedURLException {
+        if (Build.VERSION.SDK_INT < 17) {
+            // No pinning validation at all for API level before 17
+            return;
+        }
+        final String pinB = "BBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBB=";
+        final String pinC = "CCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCC=";
+        Set<DomainPinningPolicy> policies = new HashSet<>();
+        policies.add(buildPolicy("www.datatheorem.com", pinB));
+        policies.add(buildPolicy("www.google.com", pinB));
+        TestableTrustKit.init(policies, InstrumentationRegistry.getContext(), mockReporter);
+
+        X509TrustManager unchangedTrustManager =
+                TrustManagerBuilder.getTrustManager("www.datatheorem.com");
+        X509TrustManager changedTrustManager =
+                TrustManagerBuilder.getTrustManager("www.google.com");
+
+        // Rotate the backup pin of one of the domains
+        Set<DomainPinningPolicy> newPolicies = new HashSet<>();
+        newPolicies.add(buildPolicy("www.datatheorem.com", pinB));
+        newPolicies.add(buildPolicy("www.google.com", pinC));
+        TrustKit.getInstance().setConfiguration(new TestableTrustKitConfiguration(newPolicies));
+
+        // Only the trust manager for the domain whose policy changed is replaced
+        assertSame(unchangedTrustManager,
+                TrustManagerBuilder.getTrustManager("www.datatheorem.com"));
+        X509TrustManager newTrustManager = TrustManagerBuilder.getTrustManager("www.google.com");
+        assertNotSame(changedTrustManager, newTrustManager);
+        assertTrue(((PinningTrustManager) newTrustManager).getServerConfig().getPublicKeyPins()
+                .contains(new PublicKeyPin(pinC)));
+        assertEquals(2, TrustKit.getInstance().getConfiguration().getPolicyForHostname(
+                "www.google.com").getPublicKeyPins().size());
+    }
+
+    @Test
+    public void testDebugOverridesTrustManager() throws Exception {
+        if (Build.VERSION.SDK_INT < 17) {
+            // No debug overrides at all for API level before 17
+            return;
+        }
+        // Load the system trust manager first so that only the debug trust manager is measured
+        SystemTrustManager.getInstance();
+
+        X509Certificate debugCaCert = testCertChain.get(testCertChain.size() - 1);
+        Set<Certificate> debugCaCerts = new HashSet<>();
+        debugCaCerts.add(debugCaCert);
+
+        long startTime = System.nanoTime();
+        X509TrustManager trustManager = DebugOverridesTrustManager.getInstance(debugCaCerts);
+        long duration = System.nanoTime() - startTime;
+        Log.i("TrustKit", "DebugOverridesTrustManager created in " + (duration / 1000000) + " ms");
+
+        // The debug CA is trusted in addition to the system CAs
+        X509Certificate[] acceptedIssuers = trustManager.getAcceptedIssuers();
+        assertTrue(Arrays.asList(acceptedIssuers).contains(debugCaCert));
+        assertTrue(acceptedIssuers.length > 1);
+    }
+}
@@ -0,0 +1,101 @@
+package com.datatheorem.android.trustkit.pinning;
+
+
+import android.support.test.runner.AndroidJUnit4;
+
+import com.datatheorem.android.trustkit.config.DomainPinningPolicy;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.net.MalformedURLException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.HashSet;
+
+import static com.datatheorem.android.trustkit.CertificateUtils.testCertChain;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+
+@RunWith(AndroidJUnit4.class)
+public class ValidatedChainCacheTest {
+
+    private static DomainPinningPolicy buildPolicy(Date expirationDate)
+            throws MalformedURLException {
+        return new DomainPinningPolicy.Builder()
+                .setHostname("google.com")
+                .setShouldIncludeSubdomains(true)
+                .setPublicKeyHashes(new HashSet<String>() {{
+                    add("AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=");
+                    add("BBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBB=");
+                }})
+                .setExpirationDate(expirationDate)
+                .setValidationCacheTtl(300)
+                .build();
+    }
+
+    @Test
+    public void testCacheKey() throws MalformedURLException, CertificateEncodingException {
+        // Use a policy that expires in the future so that only the TTL and the certificates'
+        // validity period matter
+        DomainPinningPolicy policy = buildPolicy(new Date(Long.MAX_VALUE));
+        X509Certificate[] chain = testCertChain.toArray(new X509Certificate[0]);
+        ValidatedChainCache cache = new ValidatedChainCache(ValidatedChainCache.DEFAULT_MAX_SIZE);
+
+        ValidatedChainCache.Key key = new ValidatedChainCache.Key("mail.google.com", "RSA",
+                chain, policy);
+        assertFalse(cache.contains(key));
+        assertEquals(1, cache.missCount());
+
+        // The same key built from the same chain must match
+        ValidatedChainCache.Key sameKey = new ValidatedChainCache.Key("mail.google.com", "RSA",
+                chain, policy);
+        assertEquals(key, sameKey);
+        assertEquals(key.hashCode(), sameKey.hashCode());
+
+        // A different hostname, chain or policy must not match
+        assertFalse(key.equals(new ValidatedChainCache.Key("inbox.google.com", "RSA", chain,
+                policy)));
+        assertFalse(key.equals(new ValidatedChainCache.Key("mail.google.com", "RSA",
+                new X509Certificate[] { chain[0] }, policy)));
+        assertFalse(key.equals(new ValidatedChainCache.Key("mail.google.com", "RSA", chain,
+                buildPolicy(new Date(Long.MAX_VALUE)))));
+    }
+
+    @Test
+    public void testExpiredChainIsNotCached() throws MalformedURLException,
+            CertificateEncodingException {
+        // The test leaf certificate expired in 2016 so it must never be served from the cache
+        DomainPinningPolicy policy = buildPolicy(null);
+        X509Certificate[] chain = testCertChain.toArray(new X509Certificate[0]);
+        ValidatedChainCache cache = new ValidatedChainCache(ValidatedChainCache.DEFAULT_MAX_SIZE);
+
+        ValidatedChainCache.Key key = new ValidatedChainCache.Key("mail.google.com", "RSA",
+                chain, policy);
+        cache.put(key, chain);
+        assertFalse(cache.contains(key));
+        assertEquals(0, cache.hitCount());
+    }
+
+    @Test
+    public void testHit() throws MalformedURLException, CertificateEncodingException {
+        // Use the intermediate certificate alone, which is valid for longer
+        DomainPinningPolicy policy = buildPolicy(null);
+        X509Certificate[] chain = new X509Certificate[] { testCertChain.get(1) };
+        ValidatedChainCache cache = new ValidatedChainCache(ValidatedChainCache.DEFAULT_MAX_SIZE);
+
+        ValidatedChainCache.Key key = new ValidatedChainCache.Key("mail.google.com", "RSA",
+                chain, policy);
+        cache.put(key, chain);
+        boolean isIntermediateValid = testCertChain.get(1).getNotAfter().after(new Date());
+        assertEquals(isIntermediateValid, cache.contains(key));
+
+        // Clearing the cache removes the entry
+        cache.clear();
+        assertFalse(cache.contains(key));
+        assertTrue(cache.missCount() >= 1);
+    }
+}
@@ -1,8 +1,10 @@
 package com.datatheorem.android.trustkit.reporting;
 
 import android.os.Build;
+import android.support.annotation.NonNull;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.runner.AndroidJUnit4;
+import android.util.JsonWriter;
 
 import com.datatheorem.android.trustkit.TestableTrustKit;
 import com.datatheorem.android.trustkit.pinning.PinningValidationResult;
@@ -13,10 +15,12 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.sql.Date;
-import java.util.ArrayList;
 import java.util.HashSet;
 
 import static com.datatheorem.android.trustkit.CertificateUtils.testCertChainPem;
@@ -37,99 +41,105 @@ public class BackgroundReporterTaskTest {
             testCertChainPem, testCertChainPem, new Date(System.currentTimeMillis()), knownPins,
             PinningValidationResult.FAILED);
 
+    private final BackgroundReporterTask.RequestBody requestBody =
+            new BackgroundReporterTask.RequestBody() {
+        @Override
+        public void writeTo(@NonNull OutputStream stream) throws IOException {
+            JsonWriter writer = new JsonWriter(new OutputStreamWriter(stream, "UTF-8"));
+            report.writeJson(writer);
+            writer.flush();
+        }
+    };
+
     @Before
     public void setUp() {
         TestableTrustKit.reset();
     }
 
     @Test
-    public void testExecuteSucceedHttps() throws MalformedURLException {
+    public void testUploadSucceedHttps() throws MalformedURLException {
         if (Build.VERSION.SDK_INT < 17) {
             // TrustKit does not do anything for API level < 17 hence there is no reporting
             return;
         }
 
-        BackgroundReporterTask testTask = new BackgroundReporterTask();
-
-        // Prepare the AsyncTask's arguments
-        ArrayList<Object> taskParameters = new ArrayList<>();
-        taskParameters.add(report);
-
-        // Add two report URIs with the first one failing, to ensure both are called and last one
-        // succeeded
-        taskParameters.add(new URL("https://www.google.com/fake"));
-        taskParameters.add(new URL("https://overmind.datatheorem.com/trustkit/report"));
-
-        // Run the task synchronously and ensure it succeeded
-        Integer lastResponseCode = testTask.doInBackground(taskParameters.toArray());
-        assertEquals(Integer.valueOf(200), lastResponseCode);
+        // Upload the report synchronously and ensure it succeeded
+        Integer responseCode = BackgroundReporterTask.uploadReport(
+                new URL("https://overmind.datatheorem.com/trustkit/report"), requestBody, false);
+        assertEquals(Integer.valueOf(200), responseCode);
     }
 
     @Test
-    public void testExecuteSucceedHttp() throws MalformedURLException {
+    public void testUploadSucceedHttp() throws MalformedURLException {
         if (Build.VERSION.SDK_INT < 17) {
             // TrustKit does not do anything for API level < 17 hence there is no reporting
             return;
         }
 
-        BackgroundReporterTask testTask = new BackgroundReporterTask();
-
-        // Prepare the AsyncTask's arguments
-        ArrayList<Object> taskParameters = new ArrayList<>();
-        taskParameters.add(report);
-
-        // Add two report URIs with the first one failing, to ensure both are called and last one
-        // succeeded
-        taskParameters.add(new URL("http://www.google.com/fake"));
-        taskParameters.add(new URL("http://overmind.datatheorem.com/trustkit/report"));
-
-        // Run the task synchronously and ensure it succeeded
-        Integer lastResponseCode = testTask.doInBackground(taskParameters.toArray());
-        assertEquals(Integer.valueOf(302), lastResponseCode);
+        // Upload the report synchronously and ensure it succeeded
+        Integer responseCode = BackgroundReporterTask.uploadReport(
+                new URL("http://overmind.datatheorem.com/trustkit/report"), requestBody, false);
+        assertEquals(Integer.valueOf(302), responseCode);
     }
 
     @Test
-    public void testExecuteFailedHttpError() throws MalformedURLException {
+    public void testUploadFailedHttpError() throws MalformedURLException {
         if (Build.VERSION.SDK_INT < 17) {
             // TrustKit does not do anything for API level < 17 hence there is no reporting
             return;
         }
 
-        BackgroundReporterTask testTask = new BackgroundReporterTask();
-
-        // Prepare the AsyncTask's arguments
-        ArrayList<Object> taskParameters = new ArrayList<>();
-        taskParameters.add(report);
-
-        // Add two report URIs with the first one succeeding, to ensure both are called
-        // and last one failed
-        taskParameters.add(new URL("https://overmind.datatheorem.com/trustkit/report"));
-        taskParameters.add(new URL("https://www.google.com/fake"));
-
-        // Run the task synchronously and ensure it failed
-        Integer lastResponseCode = testTask.doInBackground(taskParameters.toArray());
-        assertEquals(Integer.valueOf(404), lastResponseCode);
+        // Upload the report synchronously and ensure it failed
+        Integer responseCode = BackgroundReporterTask.uploadReport(
+                new URL("https://www.google.com/fake"), requestBody, false);
+        assertEquals(Integer.valueOf(404), responseCode);
     }
 
     @Test
-    public void testExecuteFailedNoConnection() throws MalformedURLException {
+    public void testUploadFailedNoConnection() throws MalformedURLException {
         if (Build.VERSION.SDK_INT < 17) {
             // TrustKit does not do anything for API level < 17 hence there is no reporting
             return;
         }
 
-        BackgroundReporterTask testTask = new BackgroundReporterTask();
-
-        // Prepare the AsyncTask's arguments
-        ArrayList<Object> taskParameters = new ArrayList<>();
-        taskParameters.add(report);
-
-        taskParameters.add(new URL("https://notareal.domain.datatheorem.com"));
+        // Upload the report synchronously and ensure it failed silently
+        Integer responseCode = BackgroundReporterTask.uploadReport(
+                new URL("https://notareal.domain.datatheorem.com"), requestBody, false);
+        assertEquals(null, responseCode);
+    }
 
-        // Run the task synchronously and ensure it failed silently
-        Integer lastResponseCode = testTask.doInBackground(taskParameters.toArray());
-        assertEquals(null, lastResponseCode);
+    @Test
+    public void testConnectionIsReused() throws MalformedURLException {
+        if (Build.VERSION.SDK_INT < 17) {
+            // TrustKit does not do anything for API level < 17 hence there is no reporting
+            return;
+        }
+        URL reportUri = new URL("https://overmind.datatheorem.com/trustkit/report");
+        BackgroundReporterTask.closeIdleConnections();
+
+        // The second upload to the same server should reuse the connection of the first one
+        int openedConnectionCount = BackgroundReporterTask.getOpenedConnectionCount();
+        int reusedConnectionCount = BackgroundReporterTask.getReusedConnectionCount();
+        assertEquals(Integer.valueOf(200),
+                BackgroundReporterTask.uploadReport(reportUri, requestBody, false));
+        assertEquals(Integer.valueOf(200),
+                BackgroundReporterTask.uploadReport(reportUri, requestBody, false));
+        assertEquals(openedConnectionCount + 1, BackgroundReporterTask.getOpenedConnectionCount());
+        assertEquals(reusedConnectionCount + 1,
+                BackgroundReporterTask.getReusedConnectionCount());
+
+        // Once the idle connections were closed, a new connection gets opened
+        BackgroundReporterTask.closeIdleConnections();
+        assertEquals(Integer.valueOf(200),
+                BackgroundReporterTask.uploadReport(reportUri, requestBody, false));
+        assertEquals(openedConnectionCount + 2, BackgroundReporterTask.getOpenedConnectionCount());
+        assertEquals(reusedConnectionCount + 1,
+                BackgroundReporterTask.getReusedConnectionCount());
+
+        // A failed upload does not count as reusing a connection
+        BackgroundReporterTask.uploadReport(new URL("https://notareal.domain.datatheorem.com"),
+                requestBody, false);
+        assertEquals(reusedConnectionCount + 1,
+                BackgroundReporterTask.getReusedConnectionCount());
     }
 }
-
-
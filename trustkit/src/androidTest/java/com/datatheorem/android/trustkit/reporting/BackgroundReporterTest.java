@@ -27,7 +27,10 @@ import static com.datatheorem.android.trustkit.CertificateUtils.testCertChainPem
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anySetOf;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
@@ -62,8 +65,8 @@ public class BackgroundReporterTest {
                 .setReportUris(new HashSet<String>() {{ add("https://overmind.datatheorem.com"); }})
                 .build();
 
-        TestableBackgroundReporter reporter = new TestableBackgroundReporter("com.unit.tests",
-                "1.2",
+        TestableBackgroundReporter reporter = new TestableBackgroundReporter(
+                InstrumentationRegistry.getContext(), "com.unit.tests", "1.2",
                 VendorIdentifier.getOrCreate(InstrumentationRegistry.getContext()));
         TestableBackgroundReporter reporterSpy = Mockito.spy(reporter);
 
@@ -80,7 +83,8 @@ public class BackgroundReporterTest {
         // blocked the second, identical report
         verify(reporterSpy, times(1)).sendReport(
                 reportSent.capture(),
-                eq(new HashSet<URL>() {{ add(new URL("https://overmind.datatheorem.com")); }} )
+                eq(new HashSet<URL>() {{ add(new URL("https://overmind.datatheorem.com")); }} ),
+                eq(new HashSet<URL>())
         );
 
         // Validate the content of the generated report
@@ -122,6 +126,71 @@ public class BackgroundReporterTest {
         assertEquals("pin-sha256=\"BBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBB=\"",
                 knownPins.getString(1));
     }
-}
 
+    @Test
+    public void testReportSamplingRate() throws MalformedURLException {
+        if (Build.VERSION.SDK_INT < 17) {
+            // TrustKit does not do anything for API level < 17 hence there is no reporting
+            return;
+        }
+
+        TestableBackgroundReporter reporter = new TestableBackgroundReporter(
+                InstrumentationRegistry.getContext(), "com.unit.tests", "1.2",
+                VendorIdentifier.getOrCreate(InstrumentationRegistry.getContext()));
+        TestableBackgroundReporter reporterSpy = Mockito.spy(reporter);
+
+        // With a sampling rate of 0, no device sends reports
+        DomainPinningPolicy domainPolicy = new DomainPinningPolicy.Builder()
+                .setHostname("sampling.datatheorem.com")
+                .setPublicKeyHashes(new HashSet<String>() {{
+                    add("AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=");
+                    add("BBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBB=");
+                }})
+                .setShouldDisableDefaultReportUri(true)
+                .setReportUris(new HashSet<String>() {{ add("https://overmind.datatheorem.com"); }})
+                .setReportSamplingRate(0.0)
+                .build();
+        reporterSpy.pinValidationFailed("sampling.datatheorem.com", 443, testCertChain,
+                testCertChain, domainPolicy, PinningValidationResult.FAILED);
+        verify(reporterSpy, never()).sendReport(any(PinningFailureReport.class),
+                anySetOf(URL.class), anySetOf(URL.class));
+
+        // With a sampling rate of 1, all devices send reports
+        domainPolicy = new DomainPinningPolicy.Builder()
+                .setHostname("sampling.datatheorem.com")
+                .setPublicKeyHashes(new HashSet<String>() {{
+                    add("AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=");
+                    add("BBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBB=");
+                }})
+                .setShouldDisableDefaultReportUri(true)
+                .setReportUris(new HashSet<String>() {{ add("https://overmind.datatheorem.com"); }})
+                .setReportSamplingRate(1.0)
+                .build();
+        reporterSpy.pinValidationFailed("sampling.datatheorem.com", 443, testCertChain,
+                testCertChain, domainPolicy, PinningValidationResult.FAILED);
+        verify(reporterSpy, times(1)).sendReport(any(PinningFailureReport.class),
+                anySetOf(URL.class), anySetOf(URL.class));
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testConstructorWithoutContext() {
+        // Still supported for Apps that created a reporter before it required a Context
+        BackgroundReporter reporter = new BackgroundReporter("com.unit.tests", "1.2",
+                VendorIdentifier.getOrCreate(InstrumentationRegistry.getContext()));
+        assertEquals(0, reporter.getDroppedReportCount());
+    }
 
+    @Test
+    public void testSamplingValue() {
+        // The same vendor ID always gets the same value
+        String vendorId = VendorIdentifier.getOrCreate(InstrumentationRegistry.getContext());
+        double samplingValue = BackgroundReporter.getSamplingValue(vendorId);
+        assertEquals(samplingValue, BackgroundReporter.getSamplingValue(vendorId));
+        assertTrue((samplingValue >= 0) && (samplingValue < 1));
+
+        // Including for the most extreme hash codes
+        assertTrue(BackgroundReporter.getSamplingValue("polygenelubricants") < 1);
+        assertTrue(BackgroundReporter.getSamplingValue("") >= 0);
+    }
+}
@@ -0,0 +1,71 @@
+package com.datatheorem.android.trustkit.reporting;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.JsonWriter;
+
+import com.datatheorem.android.trustkit.config.PublicKeyPin;
+import com.datatheorem.android.trustkit.pinning.PinningValidationResult;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import static com.datatheorem.android.trustkit.CertificateUtils.testCertChainPem;
+import static junit.framework.Assert.assertEquals;
+
+
+@RunWith(AndroidJUnit4.class)
+public class PinningFailureReportTest {
+
+    private final HashSet<PublicKeyPin> knownPins = new HashSet<PublicKeyPin>() {{
+        add(new PublicKeyPin("AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA="));
+        add(new PublicKeyPin("BBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBB="));
+    }};
+
+    private final PinningFailureReport report = new PinningFailureReport("com.unit.test", "1.2",
+            "vendor-id", "www.datatheorem.com", 443, "datatheorem.com", true, true,
+            testCertChainPem, testCertChainPem, new Date(), knownPins,
+            PinningValidationResult.FAILED);
+
+    private static void writeJson(PinningFailureReport report, OutputStream stream)
+            throws IOException {
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(stream, "UTF-8"));
+        report.writeJson(writer);
+        writer.flush();
+    }
+
+    @Test
+    public void testWriteJsonMatchesToJson() throws IOException, JSONException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        writeJson(report, stream);
+        String streamedJson = stream.toString("UTF-8");
+
+        // The streamed report must be on a single line to be stored in the report queue
+        assertEquals(-1, streamedJson.indexOf('\n'));
+
+        // Both serializations must contain the same values
+        JSONObject streamedReport = new JSONObject(streamedJson);
+        JSONObject report = this.report.toJson();
+        assertEquals(report.length(), streamedReport.length());
+        Iterator<String> keys = report.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            Object value = report.get(key);
+            if (value instanceof JSONArray) {
+                assertEquals(value.toString(), streamedReport.getJSONArray(key).toString());
+            } else {
+                assertEquals(value.toString(), streamedReport.get(key).toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.datatheorem.android.trustkit.reporting;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.datatheorem.android.trustkit.config.PublicKeyPin;
+import com.datatheorem.android.trustkit.pinning.PinningValidationResult;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+
+import static com.datatheorem.android.trustkit.CertificateUtils.testCertChainPem;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+
+@RunWith(AndroidJUnit4.class)
+public class ReportQueueTest {
+
+    private File queueFile;
+
+    @Before
+    public void setUp() {
+        queueFile = new File(InstrumentationRegistry.getContext().getCacheDir(),
+                "trustkit_reports_test");
+        queueFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        queueFile.delete();
+    }
+
+    private static final URL reportUri = buildReportUri();
+
+    private static URL buildReportUri() {
+        try {
+            return new URL("https://overmind.datatheorem.com/trustkit/report");
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static PinningFailureReport buildReport(int reportId) {
+        // The report's port is used to identify it
+        return new PinningFailureReport("com.unit.test", "1.2", "vendor-id",
+                "www.datatheorem.com", reportId, "datatheorem.com", true, true, testCertChainPem,
+                testCertChainPem, new Date(), new HashSet<PublicKeyPin>(),
+                PinningValidationResult.FAILED);
+    }
+
+    private static int readReportId(ReportQueue queue, ReportQueue.Record record)
+            throws IOException, JSONException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        queue.writeReportTo(record, stream);
+        return new JSONObject(stream.toString("UTF-8")).getInt("port");
+    }
+
+    private static int countLines(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            int lineCount = 0;
+            while (reader.readLine() != null) {
+                lineCount++;
+            }
+            return lineCount;
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testRecordsArePersisted() throws IOException, JSONException {
+        ReportQueue queue = new ReportQueue(queueFile, ReportQueue.DEFAULT_MAX_RECORDS);
+        queue.add(reportUri, false, buildReport(1));
+        queue.add(reportUri, false, buildReport(2));
+        queue.add(reportUri, false, buildReport(3));
+        assertEquals(3, queue.size());
+
+        // Remove the first record
+        List<ReportQueue.Record> uploadedRecords = new ArrayList<>();
+        uploadedRecords.add(queue.peekAll().get(0));
+        queue.removeAll(uploadedRecords);
+
+        // The remaining records can still be read after the file was compacted
+        assertEquals(2, readReportId(queue, queue.peekAll().get(0)));
+
+        // The remaining records are loaded by a new queue, as if the App was restarted
+        ReportQueue reloadedQueue = new ReportQueue(queueFile, ReportQueue.DEFAULT_MAX_RECORDS);
+        List<ReportQueue.Record> records = reloadedQueue.peekAll();
+        assertEquals(2, records.size());
+        assertEquals(2, readReportId(reloadedQueue, records.get(0)));
+        assertEquals(3, readReportId(reloadedQueue, records.get(1)));
+        assertEquals(reportUri, records.get(0).reportUri);
+    }
+
+    @Test
+    public void testOldestRecordsAreDropped() throws IOException, JSONException {
+        ReportQueue queue = new ReportQueue(queueFile, 2);
+        queue.add(reportUri, false, buildReport(1));
+        queue.add(reportUri, false, buildReport(2));
+        queue.add(reportUri, false, buildReport(3));
+        assertEquals(2, queue.size());
+
+        ReportQueue reloadedQueue = new ReportQueue(queueFile, 2);
+        List<ReportQueue.Record> records = reloadedQueue.peekAll();
+        assertEquals(2, records.size());
+        assertEquals(2, readReportId(reloadedQueue, records.get(0)));
+        assertEquals(3, readReportId(reloadedQueue, records.get(1)));
+    }
+
+    @Test
+    public void testDroppedRecordsAreCompactedInBatches() throws IOException, JSONException {
+        ReportQueue queue = new ReportQueue(queueFile, 4);
+        for (int i = 1; i <= 6; i++) {
+            queue.add(reportUri, false, buildReport(i));
+        }
+        assertEquals(4, queue.size());
+
+        // The first 2 dropped records are still in the file, before the queue's records
+        assertEquals(6, countLines(queueFile));
+        assertEquals(3, readReportId(queue, queue.peekAll().get(0)));
+
+        // Dropping a third record goes over half the capacity and compacts the file
+        queue.add(reportUri, false, buildReport(7));
+        assertEquals(4, countLines(queueFile));
+
+        // Records dropped but not compacted yet are not loaded again
+        queue.add(reportUri, false, buildReport(8));
+        assertEquals(5, countLines(queueFile));
+        ReportQueue reloadedQueue = new ReportQueue(queueFile, 4);
+        List<ReportQueue.Record> records = reloadedQueue.peekAll();
+        assertEquals(4, records.size());
+        assertEquals(5, readReportId(reloadedQueue, records.get(0)));
+        assertEquals(8, readReportId(reloadedQueue, records.get(3)));
+    }
+
+    @Test
+    public void testTruncatedRecordIsSkipped() throws IOException, JSONException {
+        ReportQueue queue = new ReportQueue(queueFile, ReportQueue.DEFAULT_MAX_RECORDS);
+        queue.add(reportUri, false, buildReport(1));
+
+        // Simulate the App getting killed while a record was being written
+        FileOutputStream stream = new FileOutputStream(queueFile, true);
+        stream.write("https://overmind.datatheorem.com/trustkit/report identity {\"repo"
+                .getBytes("UTF-8"));
+        stream.close();
+
+        ReportQueue reloadedQueue = new ReportQueue(queueFile, ReportQueue.DEFAULT_MAX_RECORDS);
+        assertEquals(1, reloadedQueue.size());
+
+        // New records are not affected by the truncated one
+        reloadedQueue.add(reportUri, false, buildReport(2));
+        ReportQueue newQueue = new ReportQueue(queueFile, ReportQueue.DEFAULT_MAX_RECORDS);
+        List<ReportQueue.Record> records = newQueue.peekAll();
+        assertEquals(2, records.size());
+        assertEquals(2, readReportId(newQueue, records.get(1)));
+    }
+
+    @Test
+    public void testGzipSettingIsPersisted() throws IOException, JSONException {
+        ReportQueue queue = new ReportQueue(queueFile, ReportQueue.DEFAULT_MAX_RECORDS);
+        queue.add(reportUri, true, buildReport(1));
+        queue.add(reportUri, false, buildReport(2));
+
+        ReportQueue reloadedQueue = new ReportQueue(queueFile, ReportQueue.DEFAULT_MAX_RECORDS);
+        List<ReportQueue.Record> records = reloadedQueue.peekAll();
+        assertEquals(2, records.size());
+        assertTrue(records.get(0).shouldGzip);
+        assertFalse(records.get(1).shouldGzip);
+        assertEquals(1, readReportId(reloadedQueue, records.get(0)));
+    }
+}
@@ -1,18 +1,23 @@
 package com.datatheorem.android.trustkit.reporting;
 
 
+import android.support.test.InstrumentationRegistry;
 import android.support.test.runner.AndroidJUnit4;
 
 import com.datatheorem.android.trustkit.pinning.PinningValidationResult;
-import com.datatheorem.android.trustkit.config.PublicKeyPin;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.File;
+import java.security.cert.X509Certificate;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.List;
 
+import static com.datatheorem.android.trustkit.CertificateUtils.certificateFromPem;
+import static com.datatheorem.android.trustkit.CertificateUtils.testCertChain;
+import static com.datatheorem.android.trustkit.CertificateUtils.testCertChainPem;
 import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertTrue;
 
@@ -20,11 +25,6 @@ import static junit.framework.Assert.assertTrue;
 @RunWith(AndroidJUnit4.class)
 public class ReportRateLimiterTest {
 
-    private final HashSet<PublicKeyPin> pinList = new HashSet<PublicKeyPin>() {{
-        add(new PublicKeyPin("rFjc3wG7lTZe43zeYTvPq8k4xdDEutCmIhI5dn4oCeE="));
-        add(new PublicKeyPin("0SDf3cRToyZJaMsoS17oF72VMavLxj/N7WBNasNuiR8="));
-    }};
-
     private final ArrayList<String> pemCertificateList1 = new ArrayList<String>() {{
         add("-----BEGIN CERTIFICATE-----\n"+
                 "MIIDGTCCAgGgAwIBAgIJAI1jD1qixIPLMA0GCSqGSIb3DQEBBQUAMCMxITAfBgNV\n"+
@@ -47,80 +47,100 @@ public class ReportRateLimiterTest {
                 "-----END CERTIFICATE-----");
     }};
 
-    private final ArrayList<String> pemCertificateList2 = new ArrayList<String>() {{
-        add("-----BEGIN CERTIFICATE-----\n" +
-                "MIIE2TCCA8GgAwIBAgIQFVDTs9tHXX3ivhstjNW2zANBgkqhkiG9w0BAQUFADA8\n" +
-                "MQswCQYDVQQGEwJVUzEVMBMGA1UEChMMVGhhd3RlLCBJbmMuMRYwFAYDVQQDEw1U\n" +
-                "aGF3dGUgU1NMIENBMB4XDTE0MTAwMjAwMDAwMFoXDTE1MTEwMTIzNTk1OVowgZcx\n" +
-                "CzAJBgNVBAYTAlVTMRMwEQYDVQQIEwpDYWxpZm9ybmlhMRIwEAYDVQQHFAlQYWxv\n" +
-                "IEFsdG8xGzAZBgNVBAoUEkRhdGEgVGhlb3JlbSwgSW5jLjEkMCIGA1UECxQbU2Nh\n" +
-                "biBhbmQgU2VjdXJlIE1vYmlsZSBBcHBzMRwwGgYDVQQDFBN3d3cuZGF0YXRoZW9y\n" +
-                "ZW0uY29tMIIBIjANBgkqhkiG9w0BAQEFAAOCAQ8AMIIBCgKCAQEA5bCuLK3XOnNs\n" +
-                "i8CJvHU4H5yY3d4G1qzq7EeMydKuScMM8Nqsp4CySKTbrUhi/uIc08II9yBxM+q4\n" +
-                "NmrEg0tgVvTqvUjmMN/MrYQrSGVLxPq5gadI7UxfWeGSo9DpvgXaw1Vvehs2jGFK\n" +
-                "jLzDYbzJOhv/pqpv4UCV/xfeuqmTNqqzsp+tB5Zn6gXIvIFsxfpjbeId4OWviLnC\n" +
-                "q957++coddvqBZd2sWkyzE2un5itXRKfnMGSBTB0cU9/9fXeGhzA+u01Xj+BfpHR\n" +
-                "uP/eX+rHsgc3a4hbsSWDG5278ujJ5+4To9Bn/rTZy7uALTM2oBZvsFX4567RhB1\n" +
-                "IYbMDE5y8QIDAQABo4IBeTCCAXUwHgYDVR0RBBcwFYITd3d3LmRhdGF0aGVvcmVt\n" +
-                "LmNvbTAJBgNVHRMEAjAAMHIGA1UdIARrMGkwZwYKYIZIAYb4RQEHNjBZMCYGCCsG\n" +
-                "AQUFBwIBFhpodHRwczovL3d3dy50aGF3dGUuY29tL2NwczAvBggrBgEFBQcCAjAj\n" +
-                "DCFodHRwczovL3d3dy50aGF3dGUuY29tL3JlcG9zaXRvcnkwDgYDVR0PAQH/BAQD\n" +
-                "AgWgMB8GA1UdIwQYMBaAFKeig7s0RUA9/NUwTxK5PqEBn/bbMCsGA1UdHwQkMCIw\n" +
-                "IKAeoByGGmh0dHA6Ly90Yi5zeW1jYi5jb20vdGIuY3JsMB0GA1UdJQQWMBQGCCsG\n" +
-                "AQUFBwMBBggrBgEFBQcDAjBXBggrBgEFBQcBAQRLMEkwHwYIKwYBBQUHMAGGE2h0\n" +
-                "dHA6Ly90Yi5zeW1jZC5jb20wJgYIKwYBBQUHMAKGGmh0dHA6Ly90Yi5zeW1jYi5j\n" +
-                "b20vdGIuY3J0MA0GCSqGSIb3DQEBBQUAA4IBAQB2qnnrsAICkV9HNuBdXe+cThHV\n" +
-                "8+5+LBz3zGDpC1rCyq/DIGu0vaa/gasM+MswPj+AEI4f1K1x9K9KedjilVfXH+QI\n" +
-                "tfRzLO8iR0TbPsC6Y1avuXhal1BuvZ9UQayHRDPUEncsf+SHbIOD2GJzXy7vVk5a\n" +
-                "VjkvxLtjMprWIi+P7Hbn2qj03qX9KM1DnNsB28jqg7r2rpXNUPUKsxekfrMTaJgg\n" +
-                "zTnCN/EQvF5eGvAjjHckr1SlogV9o/y4k0x6YmPWR/vopMEPyOj+JhflKCdg+6w3\n" +
-                "79ESvZUhmgT2285c1Nu5vJjtr8x51zCNIpEoVqdkCU4c1aVZGZogSWl1rAIi\n" +
-                "-----END CERTIFICATE-----");
-    }};
+    private final List<X509Certificate> certificateChain1 = Collections.singletonList(
+            (X509Certificate) certificateFromPem(pemCertificateList1.get(0)));
+
+    private final List<X509Certificate> certificateChain2 = testCertChain;
 
 
     @Test
     public void test() {
-        PinningFailureReport report = new PinningFailureReport("com.test", "1.2.3", "vendorId",
-                "www.host.com", 443, "host.com", true, true,
-                pemCertificateList1, pemCertificateList1, new Date(),
-                pinList, PinningValidationResult.FAILED);
-
         // Ensure the same report will not be sent twice in a row
-        assertFalse(ReportRateLimiter.shouldRateLimit(report));
-        assertTrue(ReportRateLimiter.shouldRateLimit(report));
+        assertFalse(ReportRateLimiter.shouldRateLimit("host.com", "www.host.com", 443,
+                certificateChain1, PinningValidationResult.FAILED));
+        assertTrue(ReportRateLimiter.shouldRateLimit("host.com", "www.host.com", 443,
+                certificateChain1, PinningValidationResult.FAILED));
 
-        // Set the last time the cache was reset to more than 24 hours ago and ensure the report
-        // is sent again
-        long oneDayAgo = System.currentTimeMillis()-25*60*60*1000;
-        TestableReportRateLimiter.setLastReportsCacheResetDate(new Date(oneDayAgo));
-        assertFalse(ReportRateLimiter.shouldRateLimit(report));
-        assertTrue(ReportRateLimiter.shouldRateLimit(report));
+        // Make the previous report more than 24 hours old and ensure the report is sent again
+        TestableReportRateLimiter.expireAllReports();
+        assertFalse(ReportRateLimiter.shouldRateLimit("host.com", "www.host.com", 443,
+                certificateChain1, PinningValidationResult.FAILED));
+        assertTrue(ReportRateLimiter.shouldRateLimit("host.com", "www.host.com", 443,
+                certificateChain1, PinningValidationResult.FAILED));
 
 
         // Ensure the same report with a different validation result will be sent
-        report = new PinningFailureReport("com.test", "1.2.3", "vendorId",
-                "www.host.com", 443, "host.com", true, true,
-                pemCertificateList1, pemCertificateList1, new Date(),
-                pinList, PinningValidationResult.FAILED_CERTIFICATE_CHAIN_NOT_TRUSTED);
-        assertFalse(ReportRateLimiter.shouldRateLimit(report));
-        assertTrue(ReportRateLimiter.shouldRateLimit(report));
+        assertFalse(ReportRateLimiter.shouldRateLimit("host.com", "www.host.com", 443,
+                certificateChain1, PinningValidationResult.FAILED_CERTIFICATE_CHAIN_NOT_TRUSTED));
+        assertTrue(ReportRateLimiter.shouldRateLimit("host.com", "www.host.com", 443,
+                certificateChain1, PinningValidationResult.FAILED_CERTIFICATE_CHAIN_NOT_TRUSTED));
 
         // Ensure the same report with a different hostname will be sent
-        report = new PinningFailureReport("com.test", "1.2.3", "vendorId",
-                "www.otherhost.com", 443, "host.com", true, true,
-                pemCertificateList1, pemCertificateList1, new Date(),
-                pinList, PinningValidationResult.FAILED_CERTIFICATE_CHAIN_NOT_TRUSTED);
-        assertFalse(ReportRateLimiter.shouldRateLimit(report));
-        assertTrue(ReportRateLimiter.shouldRateLimit(report));
+        assertFalse(ReportRateLimiter.shouldRateLimit("host.com", "www.otherhost.com", 443,
+                certificateChain1, PinningValidationResult.FAILED_CERTIFICATE_CHAIN_NOT_TRUSTED));
+        assertTrue(ReportRateLimiter.shouldRateLimit("host.com", "www.otherhost.com", 443,
+                certificateChain1, PinningValidationResult.FAILED_CERTIFICATE_CHAIN_NOT_TRUSTED));
 
 
         // Ensure the same report with a different certificate chain will be sent
-        report = new PinningFailureReport("com.test", "1.2.3", "vendorId",
-                "www.otherhost.com", 443, "host.com", true, true,
-                pemCertificateList2, pemCertificateList2, new Date(),
-                pinList, PinningValidationResult.FAILED_CERTIFICATE_CHAIN_NOT_TRUSTED);
-        assertFalse(ReportRateLimiter.shouldRateLimit(report));
-        assertTrue(ReportRateLimiter.shouldRateLimit(report));
+        assertFalse(ReportRateLimiter.shouldRateLimit("host.com", "www.otherhost.com", 443,
+                certificateChain2, PinningValidationResult.FAILED_CERTIFICATE_CHAIN_NOT_TRUSTED));
+        assertTrue(ReportRateLimiter.shouldRateLimit("host.com", "www.otherhost.com", 443,
+                certificateChain2, PinningValidationResult.FAILED_CERTIFICATE_CHAIN_NOT_TRUSTED));
+
+        // Ensure a different instance of the same certificate chain is rate-limited
+        List<X509Certificate> certificateChain2Copy = new ArrayList<>();
+        for (String certificatePem : testCertChainPem) {
+            certificateChain2Copy.add((X509Certificate) certificateFromPem(certificatePem));
+        }
+        assertTrue(ReportRateLimiter.shouldRateLimit("host.com", "www.otherhost.com", 443,
+                certificateChain2Copy,
+                PinningValidationResult.FAILED_CERTIFICATE_CHAIN_NOT_TRUSTED));
+    }
+
+    @Test
+    public void testCacheIsBounded() {
+        // Generate a lot of different reports, like on a network that keeps changing certificates
+        for (int i = 0; i < 1000; i++) {
+            assertFalse(ReportRateLimiter.shouldRateLimit("host.com", "www.host" + i + ".com", 443,
+                    certificateChain1, PinningValidationResult.FAILED));
+        }
+        assertTrue(TestableReportRateLimiter.getCacheSize() <= 128);
+
+        // The most recent reports are still rate-limited
+        assertTrue(ReportRateLimiter.shouldRateLimit("host.com", "www.host999.com", 443,
+                certificateChain1, PinningValidationResult.FAILED));
+    }
+
+    @Test
+    public void testStateIsPersisted() {
+        File stateFile = new File(InstrumentationRegistry.getContext().getCacheDir(),
+                "trustkit_rate_limiter_test");
+        stateFile.delete();
+        ReportRateLimiter.setStateFile(stateFile);
+
+        assertFalse(ReportRateLimiter.shouldRateLimit("persisted.com", "www.persisted.com", 443,
+                certificateChain1, PinningValidationResult.FAILED));
+        ReportRateLimiter.saveStateIfNeeded();
+        assertTrue(stateFile.exists());
+
+        // Simulate a restart of the App; the report must still be rate-limited
+        TestableReportRateLimiter.clearCache();
+        ReportRateLimiter.setStateFile(stateFile);
+        assertTrue(ReportRateLimiter.shouldRateLimit("persisted.com", "www.persisted.com", 443,
+                certificateChain1, PinningValidationResult.FAILED));
+
+        // Expired reports are not saved
+        TestableReportRateLimiter.expireAllReports();
+        assertFalse(ReportRateLimiter.shouldRateLimit("persisted.com", "www.persisted.com", 443,
+                certificateChain2, PinningValidationResult.FAILED));
+        ReportRateLimiter.saveStateIfNeeded();
+        TestableReportRateLimiter.clearCache();
+        ReportRateLimiter.setStateFile(stateFile);
+        assertFalse(ReportRateLimiter.shouldRateLimit("persisted.com", "www.persisted.com", 443,
+                certificateChain1, PinningValidationResult.FAILED));
+        assertTrue(ReportRateLimiter.shouldRateLimit("persisted.com", "www.persisted.com", 443,
+                certificateChain2, PinningValidationResult.FAILED));
+        stateFile.delete();
     }
 }
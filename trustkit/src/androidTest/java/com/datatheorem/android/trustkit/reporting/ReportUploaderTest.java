@@ -0,0 +1,117 @@
+package com.datatheorem.android.trustkit.reporting;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.datatheorem.android.trustkit.config.PublicKeyPin;
+import com.datatheorem.android.trustkit.pinning.PinningValidationResult;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.datatheorem.android.trustkit.CertificateUtils.testCertChainPem;
+import static junit.framework.Assert.assertEquals;
+
+
+@RunWith(AndroidJUnit4.class)
+public class ReportUploaderTest {
+
+    private File queueFile;
+    private ReportQueue queue;
+
+    @Before
+    public void setUp() {
+        queueFile = new File(InstrumentationRegistry.getContext().getCacheDir(),
+                "trustkit_reports_test");
+        queueFile.delete();
+        queue = new ReportQueue(queueFile, ReportQueue.DEFAULT_MAX_RECORDS);
+    }
+
+    @After
+    public void tearDown() {
+        queueFile.delete();
+    }
+
+    private static PinningFailureReport buildReport(int reportId) {
+        // The report's port is used to identify it
+        return new PinningFailureReport("com.unit.test", "1.2", "vendor-id",
+                "www.datatheorem.com", reportId, "datatheorem.com", true, true, testCertChainPem,
+                testCertChainPem, new Date(), new HashSet<PublicKeyPin>(),
+                PinningValidationResult.FAILED);
+    }
+
+    private List<ReportQueue.Record> buildRecords(int count) throws MalformedURLException {
+        for (int i = 0; i < count; i++) {
+            queue.add(new URL("https://overmind.datatheorem.com/trustkit/report"), false,
+                    buildReport(i));
+        }
+        return queue.peekAll();
+    }
+
+    private String buildPayload(List<ReportQueue.Record> records, boolean asJsonArray)
+            throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        ReportUploader.buildPayload(queue, records, asJsonArray).writeTo(stream);
+        return stream.toString("UTF-8");
+    }
+
+    @Test
+    public void testBuildPayloadSingleReport() throws IOException, JSONException {
+        // Without batching, the report is sent as is
+        String payload = buildPayload(buildRecords(1), false);
+        assertEquals(0, new JSONObject(payload).getInt("port"));
+    }
+
+    @Test
+    public void testBuildPayloadBatch() throws IOException, JSONException {
+        List<ReportQueue.Record> records = buildRecords(3);
+        JSONArray payload = new JSONArray(buildPayload(records, true));
+        assertEquals(3, payload.length());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, payload.getJSONObject(i).getInt("port"));
+        }
+
+        // A batch of one report is still an array
+        payload = new JSONArray(buildPayload(records.subList(0, 1), true));
+        assertEquals(1, payload.length());
+    }
+
+    @Test
+    public void testPendingReportsAreBounded() throws MalformedURLException,
+            InterruptedException {
+        // Use a report server that does not exist so that the reports stay in the queue
+        Set<URL> reportUris =
+                Collections.singleton(new URL("https://notareal.domain.datatheorem.com"));
+        ReportUploader uploader = new ReportUploader(queue, 1);
+
+        int reportCount = 20;
+        for (int i = 0; i < reportCount; i++) {
+            uploader.enqueue(buildReport(i), reportUris, Collections.<URL>emptySet());
+        }
+
+        // Every report was either written to the queue by the worker thread or dropped
+        long timeout = System.currentTimeMillis() + 5000;
+        while ((queue.size() + uploader.getDroppedReportCount() < reportCount)
+                && (System.currentTimeMillis() < timeout)) {
+            Thread.sleep(50);
+        }
+        assertEquals(reportCount, queue.size() + uploader.getDroppedReportCount());
+        assertEquals(0, uploader.getPendingReportCount());
+    }
+}
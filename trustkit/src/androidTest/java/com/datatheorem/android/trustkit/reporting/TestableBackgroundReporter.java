@@ -1,6 +1,7 @@
 package com.datatheorem.android.trustkit.reporting;
 
 
+import android.content.Context;
 import android.os.Build;
 import android.support.annotation.NonNull;
 import android.support.annotation.RequiresApi;
@@ -11,12 +12,14 @@ import java.util.Set;
 
 @RequiresApi(api = 16)
 public class TestableBackgroundReporter extends BackgroundReporter {
-    public TestableBackgroundReporter(String appPackageName, String appVersion, String appVendorId){
-        super(appPackageName, appVersion, appVendorId);
+    public TestableBackgroundReporter(Context context, String appPackageName, String appVersion,
+                                      String appVendorId){
+        super(context, appPackageName, appVersion, appVendorId);
     }
 
     @Override
-    public void sendReport(@NonNull PinningFailureReport report, @NonNull Set<URL> reportUriSet) {
-        super.sendReport(report, reportUriSet);
+    public void sendReport(@NonNull PinningFailureReport report, @NonNull Set<URL> reportUriSet,
+                           @NonNull Set<URL> gzipReportUriSet) {
+        super.sendReport(report, reportUriSet, gzipReportUriSet);
     }
 }
@@ -1,11 +1,21 @@
 package com.datatheorem.android.trustkit.reporting;
 
 
-import java.util.Date;
-
 class TestableReportRateLimiter extends ReportRateLimiter {
 
-    public static void setLastReportsCacheResetDate(Date newDate) {
-        lastReportsCacheResetDate = newDate;
+    public static void expireAllReports() {
+        // Make all the entries look like they were added more than 24 hours ago
+        for (ReportKey reportKey : reportsCache.snapshot().keySet()) {
+            reportsCache.put(reportKey, System.currentTimeMillis() - 1);
+        }
+    }
+
+    public static void clearCache() {
+        // Simulate a restart of the App
+        reportsCache.evictAll();
+    }
+
+    public static int getCacheSize() {
+        return reportsCache.size();
     }
 }
@@ -0,0 +1,52 @@
+package com.datatheorem.android.trustkit.utils;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import static com.datatheorem.android.trustkit.CertificateUtils.testCertChain;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+
+@RunWith(AndroidJUnit4.class)
+public class Sha256DigestTest {
+
+    @Test
+    public void testDigest() throws NoSuchAlgorithmException {
+        byte[] spki = testCertChain.get(0).getPublicKey().getEncoded();
+        byte[] expectedHash = MessageDigest.getInstance("SHA-256").digest(spki);
+        assertTrue(Arrays.equals(expectedHash, Sha256Digest.digest(spki)));
+        // The digest must have been reset between calls
+        assertTrue(Arrays.equals(expectedHash, Sha256Digest.digest(spki)));
+
+        // Including when the previous caller did not complete its digest
+        Sha256Digest.get().update(spki);
+        assertTrue(Arrays.equals(expectedHash, Sha256Digest.digest(spki)));
+    }
+
+    @Test
+    public void testOneInstancePerThread() throws InterruptedException {
+        // The same instance is returned on a given thread, so no provider lookup is done
+        final MessageDigest digest = Sha256Digest.get();
+        assertSame(digest, Sha256Digest.get());
+
+        // But each thread gets its own instance
+        final MessageDigest[] otherThreadDigest = new MessageDigest[1];
+        Thread otherThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                otherThreadDigest[0] = Sha256Digest.get();
+            }
+        });
+        otherThread.start();
+        otherThread.join();
+        assertNotSame(digest, otherThreadDigest[0]);
+    }
+}
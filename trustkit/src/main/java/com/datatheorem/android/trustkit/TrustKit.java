@@ -3,13 +3,18 @@ package com.datatheorem.android.trustkit;
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
+import android.content.res.Resources;
 import android.net.SSLCertificateSocketFactory;
 import android.os.Build;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.RequiresApi;
+import android.util.LruCache;
 import android.util.Printer;
 
 import com.datatheorem.android.trustkit.config.ConfigurationException;
 import com.datatheorem.android.trustkit.config.TrustKitConfiguration;
+import com.datatheorem.android.trustkit.pinning.SystemTrustManager;
 import com.datatheorem.android.trustkit.pinning.TrustManagerBuilder;
 import com.datatheorem.android.trustkit.reporting.BackgroundReporter;
 import com.datatheorem.android.trustkit.utils.TrustKitLog;
@@ -17,7 +22,9 @@ import com.datatheorem.android.trustkit.utils.VendorIdentifier;
 
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
@@ -26,8 +33,12 @@ import java.security.NoSuchAlgorithmException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
@@ -121,6 +132,38 @@ import javax.net.ssl.X509TrustManager;
  *         for your App. Only pin failure reports are sent, which contain the App's package name,
  *         a randomly-generated ID, and the server's hostname and certificate chain that failed
  *         validation.</li>
+ *
+ *         <li>{@code validationCacheTtl}: if set to a number of seconds greater than 0, a server
+ *         certificate chain that successfully passed validation for a hostname will be trusted
+ *         again for that duration without being re-validated when it is received in subsequent
+ *         connections; default value is {@code 0} (disabled). Cached results never outlive the
+ *         {@code <pin-set>}'s {@code expiration} or the certificates' validity period.</li>
+ *
+ *         <li>{@code reportSamplingRate}: the fraction of devices, between {@code 0} and
+ *         {@code 1}, that send pin failure reports for the domain; default value is the global
+ *         {@code reportSamplingRate}. Devices are selected using their vendor identifier, so a
+ *         given device either always or never sends reports.</li>
+ *     </ul>
+ *
+ *     <p>
+ *         A {@code <trustkit-config>} tag can also be defined directly within the
+ *         {@code <network-security-config>} tag, to configure how reports are uploaded for all
+ *         domains. It supports the following attributes:
+ *     </p>
+ *
+ *     <ul>
+ *         <li>{@code reportBatchSize}: the maximum number of pin failure reports to send to a
+ *         report URI in a single request; default value is {@code 1}. When set to a value greater
+ *         than 1, each request contains a JSON array of reports instead of a single report, hence
+ *         all the configured report URIs must support this format.</li>
+ *
+ *         <li>{@code reportFlushInterval}: the number of seconds to wait after a pin failure
+ *         report was generated before uploading it, so that the reports generated in the meantime
+ *         can be sent in the same requests; default value is {@code 0}.</li>
+ *
+ *         <li>{@code reportSamplingRate}: the fraction of devices, between {@code 0} and
+ *         {@code 1}, that send pin failure reports for the domains that do not set their own
+ *         {@code reportSamplingRate}; default value is {@code 1}.</li>
  *     </ul>
  *
  * <h4>{@code <report-uri>}</h4>
@@ -133,6 +176,12 @@ import javax.net.ssl.X509TrustManager;
  *         in the project's repository
  *     </a>.
  *
+ *     <p>
+ *         If the {@code gzip} attribute is set to {@code true}, reports will be sent to this URL
+ *         compressed with gzip (with a {@code Content-Encoding: gzip} header), which the
+ *         reporting server must support; default value is {@code false}.
+ *     </p>
+ *
  * <h3>Sample TrustKit Configuration</h3>
  * <p>
  *     The following configuration will pin the www.datatheorem.com domain without enforcing pinning
@@ -173,9 +222,31 @@ import javax.net.ssl.X509TrustManager;
  */
 public class TrustKit {
 
-    protected static TrustKit trustKitInstance;
+    protected static volatile TrustKit trustKitInstance;
 
-    private final TrustKitConfiguration trustKitConfiguration;
+    // Set by initializeAsync() until TrustKit gets reset, even once the initialization completed;
+    // cleared if the initialization failed so that TrustKit can be initialized again
+    protected static volatile FutureTask<TrustKit> pendingInitialization;
+
+    // Where trustkit-policy.gradle stores the compiled policies within the App's assets
+    private static final String COMPILED_POLICY_DIRECTORY = "trustkit";
+    private static final String COMPILED_POLICY_EXTENSION = ".bin";
+
+    // Replaced as a whole by setConfiguration(); connections read it once when they get validated
+    private volatile TrustKitConfiguration trustKitConfiguration;
+
+    // One SSL context per hostname, so that SSL sessions can be resumed across the socket factories
+    // returned for the same hostname and the context only has to be initialized once. A context is
+    // replaced when the hostname's trust manager changes, after the configuration was replaced
+    private static final int SSL_CONTEXT_CACHE_SIZE = 32;
+    private final LruCache<String, HostnameSSLContext> sslContextCache =
+            new LruCache<>(SSL_CONTEXT_CACHE_SIZE);
+
+    // A single SSL context for connections to any server, created when first needed
+    private SSLContext multiHostSSLContext;
+
+    // Sends the pin failure reports; also provides the reporting metrics
+    private final BackgroundReporter backgroundReporter;
 
     protected TrustKit(@NonNull Context context,
                        @NonNull TrustKitConfiguration trustKitConfiguration) {
@@ -210,13 +281,15 @@ public class TrustKit {
         }
 
         String appVendorId = VendorIdentifier.getOrCreate(context);
-        BackgroundReporter reporter = new BackgroundReporter(appPackageName, appVersion,
+        BackgroundReporter reporter = new BackgroundReporter(context,
+                trustKitConfiguration.getReportingPolicy(), appPackageName, appVersion,
                 appVendorId);
+        backgroundReporter = reporter;
 
         // Initialize the trust manager builder
         try {
-            TrustManagerBuilder.initializeBaselineTrustManager(debugCaCerts,
-                    shouldOverridePins, reporter);
+            TrustManagerBuilder.initializeBaselineTrustManager(trustKitConfiguration,
+                    debugCaCerts, shouldOverridePins, reporter);
         } catch (CertificateException | NoSuchAlgorithmException | KeyStoreException
                 | IOException e) {
             throw new ConfigurationException("Could not parse <debug-overrides> certificates");
@@ -280,6 +353,12 @@ public class TrustKit {
      *     added to the App's manifest</a>.
      *
      * @param context the application's context.
+     * <p>
+     *     If the App's build applies trustkit-policy.gradle, the policy compiled at build time
+     *     from the Network Security Configuration file is loaded instead of parsing the XML file,
+     *     which is much faster.
+     * </p>
+     *
      * @param configurationResourceId the resource ID for the Network Security Configuration file to
      *                                use.
      * @throws ConfigurationException if the policy could not be parsed or contained errors.
@@ -287,10 +366,72 @@ public class TrustKit {
     @NonNull
     public synchronized static TrustKit initializeWithNetworkSecurityConfiguration(
             @NonNull Context context, int configurationResourceId) {
-        if (trustKitInstance != null) {
+        if ((trustKitInstance != null) || (pendingInitialization != null)) {
+            throw new IllegalStateException("TrustKit has already been initialized");
+        }
+        trustKitInstance = createInstance(context, configurationResourceId);
+        return trustKitInstance;
+    }
+
+    /** Initialize TrustKit with the Network Security Configuration file at the default location
+     * res/xml/network_security_config.xml, on a background thread.
+     *
+     * @param context the application's context.
+     * @see #initializeAsync(Context, int)
+     */
+    public synchronized static void initializeAsync(@NonNull Context context) {
+        int networkSecurityConfigId = context.getResources().getIdentifier(
+                "network_security_config", "xml", context.getPackageName());
+        initializeAsync(context, networkSecurityConfigId);
+    }
+
+    /** Initialize TrustKit with the Network Security Configuration file with the specified
+     * resource ID, on a background thread. This returns right away so that loading the policy and
+     * setting up the trust managers do not slow down the App's startup.
+     *
+     * <p>
+     *     {@link #getInstance()} can be called right after, and blocks until the initialization
+     *     has completed; hence retrieving an {@code SSLSocketFactory} or {@code X509TrustManager}
+     *     only waits if the initialization is still in progress.
+     * </p>
+     *
+     * @param context the application's context.
+     * @param configurationResourceId the resource ID for the Network Security Configuration file to
+     *                                use.
+     */
+    public synchronized static void initializeAsync(@NonNull final Context context,
+                                                    final int configurationResourceId) {
+        if ((trustKitInstance != null) || (pendingInitialization != null)) {
             throw new IllegalStateException("TrustKit has already been initialized");
         }
+        FutureTask<TrustKit> initialization = new FutureTask<>(new Callable<TrustKit>() {
+            @Override
+            public TrustKit call() {
+                TrustKit instance;
+                try {
+                    instance = createInstance(context, configurationResourceId);
+                } catch (RuntimeException e) {
+                    // The error is thrown again to the callers of getInstance() waiting for the
+                    // initialization, and TrustKit can then be initialized again
+                    TrustKitLog.w("Could not initialize TrustKit: " + e.getMessage());
+                    synchronized (TrustKit.class) {
+                        pendingInitialization = null;
+                    }
+                    throw e;
+                }
+                synchronized (TrustKit.class) {
+                    trustKitInstance = instance;
+                }
+                return instance;
+            }
+        });
+        pendingInitialization = initialization;
+        new Thread(initialization, "TrustKit-Initialization").start();
+    }
 
+    @NonNull
+    private static TrustKit createInstance(@NonNull Context context,
+                                           int configurationResourceId) {
         // On Android N, ensure that the system was also able to load the policy
         if (Build.VERSION.SDK_INT == Build.VERSION_CODES.N) {
             // This will need to be updated/double-checked for subsequent versions of Android
@@ -308,33 +449,112 @@ public class TrustKit {
             }
         }
 
-        // Then try to load the supplied policy
-        TrustKitConfiguration trustKitConfiguration;
+        // Then try to load the supplied policy, using the compiled policy if there is one as it
+        // is much faster to load than the XML policy
+        TrustKitConfiguration trustKitConfiguration =
+                loadCompiledPolicy(context, configurationResourceId);
+        if (trustKitConfiguration == null) {
+            try {
+                trustKitConfiguration = TrustKitConfiguration.fromXmlPolicy(
+                        context, context.getResources().getXml(configurationResourceId)
+                );
+            } catch (XmlPullParserException | IOException e) {
+                throw new ConfigurationException("Could not parse network security policy file");
+            } catch (CertificateException e) {
+                throw new ConfigurationException("Could not find the debug certificate in the " +
+                        "network security police file");
+            }
+        }
+
+        return new TrustKit(context, trustKitConfiguration);
+    }
+
+    /**
+     * Load the policy compiled at build time from the XML policy with the supplied resource ID,
+     * which is stored in the App's assets by trustkit-policy.gradle.
+     *
+     * @return the policy, or null if there is no compiled policy or it could not be loaded, in
+     * which case the XML policy should be parsed instead.
+     */
+    @Nullable
+    private static TrustKitConfiguration loadCompiledPolicy(@NonNull Context context,
+                                                            int configurationResourceId) {
+        String compiledPolicyPath;
         try {
-            trustKitConfiguration = TrustKitConfiguration.fromXmlPolicy(
-                    context, context.getResources().getXml(configurationResourceId)
-            );
-        } catch (XmlPullParserException | IOException e) {
-            throw new ConfigurationException("Could not parse network security policy file");
-        } catch (CertificateException e) {
-            throw new ConfigurationException("Could not find the debug certificate in the " +
-                    "network security police file");
+            compiledPolicyPath = COMPILED_POLICY_DIRECTORY + "/"
+                    + context.getResources().getResourceEntryName(configurationResourceId)
+                    + COMPILED_POLICY_EXTENSION;
+        } catch (Resources.NotFoundException e) {
+            // Let the XML parser report the error
+            return null;
         }
 
-        trustKitInstance = new TrustKit(context, trustKitConfiguration);
-        return trustKitInstance;
+        InputStream stream;
+        try {
+            stream = new BufferedInputStream(context.getAssets().open(compiledPolicyPath));
+        } catch (IOException e) {
+            // The App was not built with trustkit-policy.gradle
+            return null;
+        }
+        try {
+            return TrustKitConfiguration.fromCompiledPolicy(stream);
+        } catch (IOException | CertificateException e) {
+            TrustKitLog.w("Could not load the compiled policy, parsing the XML policy instead: "
+                    + e.getMessage());
+            return null;
+        } finally {
+            try {
+                stream.close();
+            } catch (IOException ignored) {
+            }
+        }
     }
 
-    /** Retrieve the initialized instance of TrustKit.
+    /** Load the system's CA store, which is slow; otherwise this happens when the first connection
+     * gets validated or the first pin failure report gets uploaded. It should be called on a
+     * background thread, for example once the App's first screen was displayed, and can be called
+     * before TrustKit is initialized.
+     */
+    public static void prewarm() {
+        long startTime = System.nanoTime();
+        SystemTrustManager.getInstance();
+        BackgroundReporter.prewarm();
+        TrustKitLog.i("Prewarmed TrustKit in " + ((System.nanoTime() - startTime) / 1000000)
+                + " ms");
+    }
+
+    /** Retrieve the initialized instance of TrustKit. If TrustKit is being initialized with
+     * {@link #initializeAsync(Context, int)}, this blocks until the initialization has completed.
      *
-     * @throws IllegalStateException if TrustKit has not been initialized.
+     * @throws IllegalStateException if TrustKit has not been initialized, or if the asynchronous
+     * initialization failed before this was called.
+     * @throws ConfigurationException if the asynchronous initialization failed while this was
+     * waiting for it, because the policy could not be parsed or contained errors. TrustKit can
+     * then be initialized again.
      */
     @NonNull
     public static TrustKit getInstance() {
-        if (trustKitInstance == null) {
+        TrustKit instance = trustKitInstance;
+        if (instance != null) {
+            return instance;
+        }
+        FutureTask<TrustKit> initialization = pendingInitialization;
+        if (initialization == null) {
             throw new IllegalStateException("TrustKit has not been initialized");
         }
-        return trustKitInstance;
+
+        // Wait for the background initialization
+        try {
+            return initialization.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Could not initialize TrustKit", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while TrustKit was being initialized");
+        }
     }
 
     /** Retrieve the current TrustKit configuration.
@@ -342,6 +562,58 @@ public class TrustKit {
      */
     @NonNull
     public TrustKitConfiguration getConfiguration() { return trustKitConfiguration; }
+
+    /** Retrieve TrustKit's current metrics, such as how many pin failure reports are waiting to
+     * be processed, so that the App can monitor them.
+     *
+     */
+    @NonNull
+    public TrustKitMetrics getMetrics() {
+        return new TrustKitMetrics(backgroundReporter.getPendingReportCount(),
+                backgroundReporter.getDroppedReportCount(),
+                backgroundReporter.getOpenedConnectionCount(),
+                backgroundReporter.getReusedConnectionCount(),
+                TrustManagerBuilder.getValidatedChainCacheHitCount(),
+                TrustManagerBuilder.getValidatedChainCacheMissCount());
+    }
+
+    /** Replace the current TrustKit configuration, for example to rotate pins without updating
+     * the App. The new configuration can be loaded with
+     * {@link TrustKitConfiguration#fromXmlPolicy(Context, org.xmlpull.v1.XmlPullParser)} or
+     * {@link TrustKitConfiguration#fromCompiledPolicy(InputStream)}.
+     *
+     * <p>
+     *     The new domain policies apply to the connections validated after this returns,
+     *     including with the {@code SSLSocketFactory} and {@code X509TrustManager} instances
+     *     retrieved previously for the multi-host APIs; connections that are being validated keep
+     *     using the previous configuration. The {@code SSLSocketFactory} and
+     *     {@code X509TrustManager} previously retrieved for a specific hostname keep enforcing the
+     *     policy that was in effect when they were retrieved, hence they should be retrieved again
+     *     for new connections.
+     * </p>
+     *
+     * <p>
+     *     The cached trust managers and SSL contexts are only replaced for the domains whose
+     *     policy changed. The debug-overrides and the global reporting settings configured when
+     *     TrustKit was initialized remain in effect.
+     * </p>
+     *
+     * <p>
+     *     On Android N and later, the pins of the Network Security Configuration set in the App's
+     *     manifest are enforced by the OS, and cannot be replaced at runtime: TrustKit enforces
+     *     the pins of the domains whose policy was changed or added, but the connections to a
+     *     domain of the manifest's policy still also have to match the manifest's pins. Hence
+     *     rotating the pins of such a domain requires the new pin-set to keep a pin from the
+     *     manifest's pin-set that the server's chain still matches.
+     * </p>
+     *
+     * @param trustKitConfiguration the new configuration.
+     */
+    public synchronized void setConfiguration(
+            @NonNull TrustKitConfiguration trustKitConfiguration) {
+        this.trustKitConfiguration =
+                trustKitConfiguration.reusePolicies(this.trustKitConfiguration);
+    }
     
     /** Retrieve an {@code SSLSSocketFactory} that implements SSL pinning validation based on the
      * current TrustKit configuration for the specified serverHostname. It can be used with most
@@ -357,17 +629,110 @@ public class TrustKit {
      *     redirections to other domains should not happen in this scenario.
      * </p>
      *
+     * <p>
+     *     The underlying {@code SSLContext} is cached for each hostname, hence calling this method
+     *     for every connection is cheap and lets connections to the same server resume previous
+     *     SSL sessions.
+     * </p>
+     *
      * @param serverHostname the server's hostname that the {@code SSLSocketFactory} will be used to
      *                       connect to. This hostname will be used to retrieve the pinning policy
      *                       from the current TrustKit configuration.
      */
     @NonNull
     public SSLSocketFactory getSSLSocketFactory(@NonNull String serverHostname) {
+        return getSSLContext(serverHostname).getSocketFactory();
+    }
+
+    /** Create an {@code SSLEngine} in client mode that implements SSL pinning validation based on
+     * the current TrustKit configuration for the specified serverHostname. It can be used with
+     * non-blocking network APIs (such as {@code SocketChannel}s handled by a selector) to add SSL
+     * pinning validation to the connections; validation happens during the engine's handshake.
+     *
+     * <p>
+     *     The engine is created from the same cached {@code SSLContext} as the
+     *     {@code SSLSocketFactory} returned by {@link #getSSLSocketFactory(String)}, hence SSL
+     *     sessions are shared between the two and creating an engine for every connection is
+     *     cheap.
+     * </p>
+     *
+     * @param serverHostname the server's hostname that the {@code SSLEngine} will be used to
+     *                       connect to. This hostname will be used to retrieve the pinning policy
+     *                       from the current TrustKit configuration, and will be sent in the SNI
+     *                       extension.
+     * @param serverPort the server's port, used as a hint for resuming SSL sessions.
+     */
+    @NonNull
+    public SSLEngine createSSLEngine(@NonNull String serverHostname, int serverPort) {
+        SSLEngine sslEngine = getSSLContext(serverHostname).createSSLEngine(serverHostname,
+                serverPort);
+        sslEngine.setUseClientMode(true);
+        return sslEngine;
+    }
+
+    /** Retrieve an {@code SSLSocketFactory} that implements SSL pinning validation based on the
+     * current TrustKit configuration, for connections to any server. The server's hostname is
+     * retrieved from each SSL socket when its certificate chain gets validated, and the
+     * corresponding pinning policy is then enforced.
+     *
+     * <p>
+     *     A single {@code SSLSocketFactory} can therefore be shared by all the connections of an
+     *     HTTP client, including connections to different servers that are kept in a connection
+     *     pool. Sockets must be created with the server's hostname (for example using
+     *     {@code createSocket(socket, host, port, autoClose)}), otherwise validation will fail.
+     * </p>
+     *
+     * <p>
+     *     This requires Android N or later; on earlier versions
+     *     {@link #getSSLSocketFactory(String)} has to be used instead.
+     * </p>
+     */
+    @RequiresApi(api = 24)
+    @NonNull
+    public SSLSocketFactory getSSLSocketFactory() {
+        return getMultiHostSSLContext().getSocketFactory();
+    }
+
+    @RequiresApi(api = 24)
+    @NonNull
+    private synchronized SSLContext getMultiHostSSLContext() {
+        if (multiHostSSLContext == null) {
+            multiHostSSLContext = createSSLContext(getTrustManager());
+        }
+        return multiHostSSLContext;
+    }
+
+    @NonNull
+    private SSLContext getSSLContext(@NonNull String serverHostname) {
+        X509TrustManager trustManager = getTrustManager(serverHostname);
+        HostnameSSLContext hostnameSSLContext = sslContextCache.get(serverHostname);
+        if ((hostnameSSLContext == null) || (hostnameSSLContext.trustManager != trustManager)) {
+            // First connection to this server, or its policy changed
+            hostnameSSLContext = new HostnameSSLContext(trustManager,
+                    createSSLContext(trustManager));
+            sslContextCache.put(serverHostname, hostnameSSLContext);
+        }
+        return hostnameSSLContext.sslContext;
+    }
+
+    // An SSL context and the trust manager it was initialized with
+    private static final class HostnameSSLContext {
+        @NonNull final X509TrustManager trustManager;
+        @NonNull final SSLContext sslContext;
+
+        HostnameSSLContext(@NonNull X509TrustManager trustManager,
+                           @NonNull SSLContext sslContext) {
+            this.trustManager = trustManager;
+            this.sslContext = sslContext;
+        }
+    }
+
+    @NonNull
+    private static SSLContext createSSLContext(@NonNull X509TrustManager trustManager) {
         try {
             SSLContext sslContext = SSLContext.getInstance("TLS");
-            sslContext.init(null, new TrustManager[]{getTrustManager(serverHostname)}, null);
-
-            return sslContext.getSocketFactory();
+            sslContext.init(null, new TrustManager[]{trustManager}, null);
+            return sslContext;
         } catch (NoSuchAlgorithmException | KeyManagementException e) {
             e.printStackTrace();
             throw new IllegalStateException("Should not happen");
@@ -396,4 +761,21 @@ public class TrustKit {
     public X509TrustManager getTrustManager(@NonNull String serverHostname) {
         return TrustManagerBuilder.getTrustManager(serverHostname);
     }
+
+    /** Retrieve an {@code X509TrustManager} that implements SSL pinning validation based on the
+     * current TrustKit configuration, for connections to any server. The server's hostname is
+     * retrieved from the SSL socket or engine whose certificate chain is being validated, and the
+     * corresponding pinning policy is then enforced.
+     *
+     * <p>
+     *     The returned trust manager is an {@code X509ExtendedTrustManager}; it requires Android N
+     *     or later and can only be used by network APIs that supply the socket or engine during
+     *     validation (such as the {@code SSLContext} APIs).
+     * </p>
+     */
+    @RequiresApi(api = 24)
+    @NonNull
+    public X509TrustManager getTrustManager() {
+        return TrustManagerBuilder.getMultiHostTrustManager();
+    }
 }
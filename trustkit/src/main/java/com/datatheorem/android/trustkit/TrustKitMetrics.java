@@ -0,0 +1,88 @@
+package com.datatheorem.android.trustkit;
+
+
+/**
+ * A snapshot of TrustKit's counters, retrieved with {@link TrustKit#getMetrics()}, for Apps that
+ * want to monitor how TrustKit behaves in production. The counts are cumulative since the App
+ * process was started.
+ */
+public final class TrustKitMetrics {
+
+    private final int pendingReportCount;
+    private final long droppedReportCount;
+    private final int openedReportConnectionCount;
+    private final int reusedReportConnectionCount;
+    private final long validatedChainCacheHitCount;
+    private final long validatedChainCacheMissCount;
+
+    TrustKitMetrics(int pendingReportCount, long droppedReportCount,
+                    int openedReportConnectionCount, int reusedReportConnectionCount,
+                    long validatedChainCacheHitCount, long validatedChainCacheMissCount) {
+        this.pendingReportCount = pendingReportCount;
+        this.droppedReportCount = droppedReportCount;
+        this.openedReportConnectionCount = openedReportConnectionCount;
+        this.reusedReportConnectionCount = reusedReportConnectionCount;
+        this.validatedChainCacheHitCount = validatedChainCacheHitCount;
+        this.validatedChainCacheMissCount = validatedChainCacheMissCount;
+    }
+
+    /**
+     * Retrieve the number of pinning failure reports waiting to be written to disk by the
+     * reporting thread, ie. the depth of the in-memory report queue.
+     */
+    public int getPendingReportCount() {
+        return pendingReportCount;
+    }
+
+    /**
+     * Retrieve the number of pinning failure reports that were dropped because too many reports
+     * were waiting to be written to disk.
+     */
+    public long getDroppedReportCount() {
+        return droppedReportCount;
+    }
+
+    /**
+     * Retrieve the number of HTTPS connections that were opened to upload reports. Uploads to HTTP
+     * report URIs are not counted.
+     */
+    public int getOpenedReportConnectionCount() {
+        return openedReportConnectionCount;
+    }
+
+    /**
+     * Retrieve the number of successful HTTPS report uploads that reused a connection opened by a
+     * previous upload, instead of opening a new one. Uploads to HTTP report URIs are not counted.
+     */
+    public int getReusedReportConnectionCount() {
+        return reusedReportConnectionCount;
+    }
+
+    /**
+     * Retrieve the number of connections whose certificate chain was found in the cache of
+     * validated chains. The cache is only used for domains with a validationCacheTtl.
+     */
+    public long getValidatedChainCacheHitCount() {
+        return validatedChainCacheHitCount;
+    }
+
+    /**
+     * Retrieve the number of connections whose certificate chain had to be validated because it
+     * was not found in the cache of validated chains.
+     */
+    public long getValidatedChainCacheMissCount() {
+        return validatedChainCacheMissCount;
+    }
+
+    @Override
+    public String toString() {
+        return "TrustKitMetrics{" +
+                "pendingReportCount = " + pendingReportCount + "\n" +
+                "droppedReportCount = " + droppedReportCount + "\n" +
+                "openedReportConnectionCount = " + openedReportConnectionCount + "\n" +
+                "reusedReportConnectionCount = " + reusedReportConnectionCount + "\n" +
+                "validatedChainCacheHitCount = " + validatedChainCacheHitCount + "\n" +
+                "validatedChainCacheMissCount = " + validatedChainCacheMissCount + "\n" +
+                "}";
+    }
+}
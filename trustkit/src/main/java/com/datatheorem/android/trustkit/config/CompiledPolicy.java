@@ -0,0 +1,158 @@
+package com.datatheorem.android.trustkit.config;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+
+/**
+ * A compact binary form of a TrustKit / Network Security policy, which can be loaded at startup
+ * much faster than the XML policy as it does not require parsing XML, base64-decoding the pins or
+ * parsing dates.
+ *
+ * The policy is compiled from the App's XML policy at build time by trustkit-policy.gradle, which
+ * must be kept in sync with this class; CompiledPolicyTest checks that a policy compiled by the
+ * script loads into the same configuration as the XML policy. It is a DataOutputStream containing:
+ * <ul>
+ *     <li>The magic number and the format version.</li>
+ *     <li>The global reporting settings: reportBatchSize, reportFlushInterval and
+ *     reportSamplingRate.</li>
+ *     <li>The debug overrides: overridePins, then the number of debug CA certificates followed by
+ *     each certificate's length and DER encoding.</li>
+ *     <li>The number of domains followed by, for each domain: the hostname, includeSubdomains,
+ *     the number of pins followed by each pin's 32 bytes, enforcePinning, the expiration date as
+ *     yyyymmdd, whether report URIs were set followed by their number and each URI with its gzip
+ *     setting, disableDefaultReportUri, validationCacheTtl and reportSamplingRate.</li>
+ * </ul>
+ * Settings that are optional in the XML policy are preceded by a boolean telling whether they
+ * were set, so that the same default values are used as when parsing the XML policy.
+ */
+final class CompiledPolicy {
+
+    // "TKCP"
+    static final int MAGIC = 0x544b4350;
+    static final int VERSION = 1;
+
+    private CompiledPolicy() {
+    }
+
+    /**
+     * Load a compiled policy.
+     *
+     * @throws IOException if the policy is truncated or was compiled for a different version of
+     * TrustKit; the XML policy should then be used instead.
+     */
+    @NonNull
+    static TrustKitConfiguration read(@NonNull InputStream stream)
+            throws IOException, CertificateException {
+        DataInputStream input = new DataInputStream(stream);
+        if (input.readInt() != MAGIC) {
+            throw new IOException("Not a compiled TrustKit policy");
+        }
+        int version = input.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported compiled policy version: " + version);
+        }
+
+        ReportingPolicy reportingPolicy = new ReportingPolicy(readInteger(input),
+                readInteger(input), readDouble(input));
+
+        boolean shouldOverridePins = input.readBoolean();
+        Set<Certificate> debugCaCertificates = null;
+        int debugCaCount = input.readInt();
+        if (debugCaCount > 0) {
+            debugCaCertificates = new HashSet<>();
+            CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
+            for (int i = 0; i < debugCaCount; i++) {
+                byte[] certificate = new byte[input.readInt()];
+                input.readFully(certificate);
+                debugCaCertificates.add(certificateFactory.generateCertificate(
+                        new ByteArrayInputStream(certificate)));
+            }
+        }
+
+        List<DomainPinningPolicy> domainPolicies = new ArrayList<>();
+        int domainCount = input.readInt();
+        for (int i = 0; i < domainCount; i++) {
+            domainPolicies.add(readDomainPolicy(input));
+        }
+        return new TrustKitConfiguration(domainPolicies, shouldOverridePins, debugCaCertificates,
+                reportingPolicy);
+    }
+
+    @NonNull
+    private static DomainPinningPolicy readDomainPolicy(@NonNull DataInputStream input)
+            throws IOException {
+        String hostname = input.readUTF();
+        Boolean shouldIncludeSubdomains = readBoolean(input);
+
+        Set<PublicKeyPin> publicKeyPins = new HashSet<>();
+        int pinCount = input.readInt();
+        byte[] pin = new byte[32];
+        for (int i = 0; i < pinCount; i++) {
+            input.readFully(pin);
+            publicKeyPins.add(new PublicKeyPin(pin));
+        }
+
+        Boolean shouldEnforcePinning = readBoolean(input);
+
+        Date expirationDate = null;
+        Integer expiration = readInteger(input);
+        if (expiration != null) {
+            // Midnight in the device's timezone, like when parsing the XML policy
+            expirationDate = new GregorianCalendar(expiration / 10000,
+                    (expiration / 100) % 100 - 1, expiration % 100).getTime();
+        }
+
+        Set<String> reportUris = null;
+        Set<String> gzipReportUris = null;
+        if (input.readBoolean()) {
+            reportUris = new HashSet<>();
+            gzipReportUris = new HashSet<>();
+            int reportUriCount = input.readInt();
+            for (int i = 0; i < reportUriCount; i++) {
+                String reportUri = input.readUTF();
+                reportUris.add(reportUri);
+                if (input.readBoolean()) {
+                    gzipReportUris.add(reportUri);
+                }
+            }
+        }
+
+        Boolean shouldDisableDefaultReportUri = readBoolean(input);
+        Integer validationCacheTtl = readInteger(input);
+        Double reportSamplingRate = readDouble(input);
+
+        return new DomainPinningPolicy(hostname, shouldIncludeSubdomains, publicKeyPins,
+                shouldEnforcePinning, expirationDate, reportUris, shouldDisableDefaultReportUri,
+                validationCacheTtl, gzipReportUris, reportSamplingRate);
+    }
+
+    @Nullable
+    private static Boolean readBoolean(@NonNull DataInputStream input) throws IOException {
+        return input.readBoolean() ? input.readBoolean() : null;
+    }
+
+    @Nullable
+    private static Integer readInteger(@NonNull DataInputStream input) throws IOException {
+        return input.readBoolean() ? input.readInt() : null;
+    }
+
+    @Nullable
+    private static Double readDouble(@NonNull DataInputStream input) throws IOException {
+        return input.readBoolean() ? input.readDouble() : null;
+    }
+}
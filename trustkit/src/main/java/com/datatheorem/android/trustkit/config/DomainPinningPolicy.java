@@ -31,14 +31,20 @@ public final class DomainPinningPolicy {
     @Nullable private final Date expirationDate;
     private final boolean shouldEnforcePinning;
     @NonNull private final Set<URL> reportUris;
+    @NonNull private final Set<URL> gzipReportUris;
+    private final int validationCacheTtl;
+    @Nullable private final Double reportSamplingRate;
 
     DomainPinningPolicy(@NonNull String hostname,
                         Boolean shouldIncludeSubdomains,
-                        @NonNull Set<String> publicKeyHashStrList,
+                        @NonNull Set<PublicKeyPin> publicKeyPins,
                         Boolean shouldEnforcePinning,
                         @Nullable Date expirationDate,
                         @Nullable Set<String> reportUriStrList,
-                        Boolean shouldDisableDefaultReportUri)
+                        Boolean shouldDisableDefaultReportUri,
+                        @Nullable Integer validationCacheTtl,
+                        @Nullable Set<String> gzipReportUriStrList,
+                        @Nullable Double reportSamplingRate)
             throws MalformedURLException {
         // Run some sanity checks on the configuration
         // Check if the hostname seems valid
@@ -50,7 +56,7 @@ public final class DomainPinningPolicy {
 
         // Check if the configuration has a empty pin-set and still would enforce pinning
         // TrustKit should not work if the configuration contains both (opposite behaviors)
-        if (publicKeyHashStrList.isEmpty() && shouldEnforcePinning) {
+        if ((publicKeyPins.size() == 0) && shouldEnforcePinning) {
             throw new ConfigurationException("An empty pin-set was supplied "+
               "for domain " + this.hostname + " with the enforcePinning set to true. " +
               "An empty pin-set disables pinning and can't be use with enforcePinning set to true.");
@@ -59,18 +65,14 @@ public final class DomainPinningPolicy {
         // Check if the configuration has at least two pins (including a backup pin)
         // TrustKit should not work if the configuration contains only one pin
         // more info (https://tools.ietf.org/html/rfc7469#page-21)
-        if (publicKeyHashStrList.size() < 2 && shouldEnforcePinning) {
+        if (publicKeyPins.size() < 2 && shouldEnforcePinning) {
             throw new ConfigurationException("Less than two pins were supplied "+
                     "for domain " + this.hostname + ". This might " +
                     "brick your App; please review the Getting Started guide in " +
                     "./docs/getting-started.md");
         }
 
-        // Parse the supplied pins
-        publicKeyPins = new HashSet<>();
-        for (String pinStr : publicKeyHashStrList)  {
-            publicKeyPins.add(new PublicKeyPin(pinStr));
-        }
+        this.publicKeyPins = new HashSet<>(publicKeyPins);
 
         // Parse the supplied report URLs
         reportUris = new HashSet<>();
@@ -80,6 +82,19 @@ public final class DomainPinningPolicy {
             }
         }
 
+        // Parse the report URLs that accept gzip-compressed reports
+        gzipReportUris = new HashSet<>();
+        if (gzipReportUriStrList != null) {
+            for (String UriStr : gzipReportUriStrList) {
+                URL gzipReportUri = new URL(UriStr);
+                if (!reportUris.contains(gzipReportUri)) {
+                    throw new ConfigurationException("Report URI to be gzipped is not a report URI "
+                            + "for domain " + this.hostname + ": " + UriStr);
+                }
+                gzipReportUris.add(gzipReportUri);
+            }
+        }
+
         // Add the default report URL
         if ((shouldDisableDefaultReportUri == null) || (!shouldDisableDefaultReportUri) ) {
             reportUris.add(DEFAULT_REPORTING_URL);
@@ -98,6 +113,24 @@ public final class DomainPinningPolicy {
         }
 
         this.expirationDate = expirationDate;
+
+        // Caching of validation results is disabled by default
+        if (validationCacheTtl == null) {
+            this.validationCacheTtl = 0;
+        } else if (validationCacheTtl < 0) {
+            throw new ConfigurationException("Invalid validationCacheTtl for domain "
+                    + this.hostname + ": " + validationCacheTtl);
+        } else {
+            this.validationCacheTtl = validationCacheTtl;
+        }
+
+        // The global sampling rate is used if none was set for the domain
+        if ((reportSamplingRate != null)
+                && !((reportSamplingRate >= 0) && (reportSamplingRate <= 1))) {
+            throw new ConfigurationException("Invalid reportSamplingRate for domain "
+                    + this.hostname + ": " + reportSamplingRate);
+        }
+        this.reportSamplingRate = reportSamplingRate;
     }
 
     @NonNull
@@ -119,6 +152,15 @@ public final class DomainPinningPolicy {
         return reportUris;
     }
 
+    /**
+     * Retrieve the report URIs to which reports should be sent compressed with gzip; they are a
+     * subset of {@link #getReportUris()}.
+     */
+    @NonNull
+    public Set<URL> getGzipReportUris() {
+        return gzipReportUris;
+    }
+
     public boolean shouldIncludeSubdomains() {
         return shouldIncludeSubdomains;
     }
@@ -128,6 +170,51 @@ public final class DomainPinningPolicy {
         return expirationDate;
     }
 
+    /**
+     * Retrieve how long, in seconds, a certificate chain that was successfully validated for this
+     * domain can be trusted again without being re-validated. 0 means that validation results are
+     * not cached.
+     */
+    public int getValidationCacheTtl() {
+        return validationCacheTtl;
+    }
+
+    /**
+     * Retrieve the fraction of devices, between 0 and 1, that send pin failure reports for this
+     * domain, or null if the global reportSamplingRate applies.
+     */
+    @Nullable
+    public Double getReportSamplingRate() {
+        return reportSamplingRate;
+    }
+
+    @Override
+    public boolean equals(Object arg0) {
+        if (this == arg0) {
+            return true;
+        }
+        if (!(arg0 instanceof DomainPinningPolicy)) {
+            return false;
+        }
+        DomainPinningPolicy other = (DomainPinningPolicy) arg0;
+        return hostname.equals(other.hostname)
+                && (shouldIncludeSubdomains == other.shouldIncludeSubdomains)
+                && (shouldEnforcePinning == other.shouldEnforcePinning)
+                && (validationCacheTtl == other.validationCacheTtl)
+                && publicKeyPins.equals(other.publicKeyPins)
+                && reportUris.equals(other.reportUris)
+                && gzipReportUris.equals(other.gzipReportUris)
+                && ((expirationDate == null) ? (other.expirationDate == null)
+                        : expirationDate.equals(other.expirationDate))
+                && ((reportSamplingRate == null) ? (other.reportSamplingRate == null)
+                        : reportSamplingRate.equals(other.reportSamplingRate));
+    }
+
+    @Override
+    public int hashCode() {
+        return hostname.hashCode();
+    }
+
     @Override
     public String toString() {
         return "DomainPinningPolicy{" +
@@ -136,7 +223,10 @@ public final class DomainPinningPolicy {
                 "\n" +
                 "shouldEnforcePinning = " + shouldEnforcePinning + "\n" +
                 "reportUris = " + reportUris + "\n" +
+                "gzipReportUris = " + gzipReportUris + "\n" +
                 "shouldIncludeSubdomains = " + shouldIncludeSubdomains + "\n" +
+                "validationCacheTtl = " + validationCacheTtl + "\n" +
+                "reportSamplingRate = " + reportSamplingRate + "\n" +
                 "}";
     }
 
@@ -151,7 +241,10 @@ public final class DomainPinningPolicy {
         private Date expirationDate = null;
         private Boolean shouldEnforcePinning = null;
         private Set<String> reportUris = null;
+        private Set<String> gzipReportUris = null;
         private Boolean shouldDisableDefaultReportUri = null;
+        private Integer validationCacheTtl = null;
+        private Double reportSamplingRate = null;
 
         // The parent domain-config
         private Builder parentBuilder = null;
@@ -179,17 +272,37 @@ public final class DomainPinningPolicy {
                 }
 
                 if (reportUris == null) {
+                    // The gzip setting goes with the report URIs it applies to
                     reportUris = parentBuilder.getReportUris();
+                    gzipReportUris = parentBuilder.getGzipReportUris();
                 }
 
                 if (shouldDisableDefaultReportUri == null) {
                     shouldDisableDefaultReportUri = parentBuilder.getShouldDisableDefaultReportUri();
                 }
+
+                if (validationCacheTtl == null) {
+                    validationCacheTtl = parentBuilder.getValidationCacheTtl();
+                }
+
+                if (reportSamplingRate == null) {
+                    reportSamplingRate = parentBuilder.getReportSamplingRate();
+                }
             }
 
-            return new DomainPinningPolicy(hostname, shouldIncludeSubdomains, publicKeyHashes,
-                    shouldEnforcePinning, expirationDate, reportUris,
-                    shouldDisableDefaultReportUri);
+            return new DomainPinningPolicy(hostname, shouldIncludeSubdomains,
+                    parsePins(publicKeyHashes), shouldEnforcePinning, expirationDate, reportUris,
+                    shouldDisableDefaultReportUri, validationCacheTtl, gzipReportUris,
+                    reportSamplingRate);
+        }
+
+        @NonNull
+        private static Set<PublicKeyPin> parsePins(@NonNull Set<String> publicKeyHashStrList) {
+            Set<PublicKeyPin> publicKeyPins = new HashSet<>();
+            for (String pinStr : publicKeyHashStrList)  {
+                publicKeyPins.add(new PublicKeyPin(pinStr));
+            }
+            return publicKeyPins;
         }
 
         public Builder setParent(Builder parent) {
@@ -255,6 +368,15 @@ public final class DomainPinningPolicy {
             return this;
         }
 
+        Set<String> getGzipReportUris() {
+            return gzipReportUris;
+        }
+
+        public Builder setGzipReportUris(Set<String> gzipReportUris) {
+            this.gzipReportUris = gzipReportUris;
+            return this;
+        }
+
         Boolean getShouldDisableDefaultReportUri() {
             return shouldDisableDefaultReportUri;
         }
@@ -263,5 +385,23 @@ public final class DomainPinningPolicy {
             this.shouldDisableDefaultReportUri = shouldDisableDefaultReportUri;
             return this;
         }
+
+        Integer getValidationCacheTtl() {
+            return validationCacheTtl;
+        }
+
+        public Builder setValidationCacheTtl(Integer validationCacheTtl) {
+            this.validationCacheTtl = validationCacheTtl;
+            return this;
+        }
+
+        Double getReportSamplingRate() {
+            return reportSamplingRate;
+        }
+
+        public Builder setReportSamplingRate(Double reportSamplingRate) {
+            this.reportSamplingRate = reportSamplingRate;
+            return this;
+        }
     }
 }
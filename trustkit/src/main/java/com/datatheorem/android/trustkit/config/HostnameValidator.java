@@ -0,0 +1,119 @@
+package com.datatheorem.android.trustkit.config;
+
+import android.support.annotation.NonNull;
+import android.util.LruCache;
+
+
+/**
+ * Checks hostnames supplied at connection time, using the same rules as
+ * {@link DomainValidator#isValid(String)} (without local addresses) but without regular
+ * expressions: ASCII hostnames are checked label by label and only their top-level domain is
+ * looked up. The hostnames that were found valid are cached, so that connecting to the same servers
+ * again does not require any validation.
+ */
+final class HostnameValidator {
+
+    private static final int MAX_DOMAIN_LENGTH = 253;
+    private static final int MAX_LABEL_LENGTH = 63;
+
+    private static final int VALID_HOSTNAMES_CACHE_SIZE = 128;
+    private static final LruCache<String, Boolean> validHostnames =
+            new LruCache<>(VALID_HOSTNAMES_CACHE_SIZE);
+
+    private HostnameValidator() {
+    }
+
+    static boolean isValid(@NonNull String hostname) {
+        if (validHostnames.get(hostname) != null) {
+            return true;
+        }
+
+        boolean isValid;
+        if (isOnlyAscii(hostname)) {
+            isValid = isValidAsciiHostname(hostname);
+        } else {
+            // Internationalized domain names need to be converted to punycode first; this is rare
+            // enough to just use the full validator
+            isValid = DomainValidator.getInstance(false).isValid(hostname);
+        }
+
+        if (isValid) {
+            validHostnames.put(hostname, Boolean.TRUE);
+        }
+        return isValid;
+    }
+
+    private static boolean isOnlyAscii(@NonNull String hostname) {
+        for (int i = 0; i < hostname.length(); i++) {
+            if (hostname.charAt(i) > 0x7F) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check that the hostname is made of at least two labels of letters, digits and hyphens that
+     * do not start or end with a hyphen, the last of which is a known top-level domain.
+     */
+    private static boolean isValidAsciiHostname(@NonNull String hostname) {
+        if (hostname.length() > MAX_DOMAIN_LENGTH) {
+            return false;
+        }
+
+        // A single trailing dot is allowed
+        int hostnameEnd = hostname.length();
+        if ((hostnameEnd > 0) && (hostname.charAt(hostnameEnd - 1) == '.')) {
+            hostnameEnd--;
+        }
+
+        int labelStart = 0;
+        int labelCount = 0;
+        while (labelStart < hostnameEnd) {
+            int labelEnd = hostname.indexOf('.', labelStart);
+            if ((labelEnd == -1) || (labelEnd > hostnameEnd)) {
+                labelEnd = hostnameEnd;
+            }
+            if (!isValidLabel(hostname, labelStart, labelEnd)) {
+                return false;
+            }
+            labelCount++;
+
+            if (labelEnd == hostnameEnd) {
+                // This is the top-level domain, which must start with a letter
+                return (labelCount > 1) && isLetter(hostname.charAt(labelStart))
+                        && DomainValidator.getInstance(false).isValidTld(
+                                hostname.substring(labelStart, labelEnd));
+            }
+            labelStart = labelEnd + 1;
+        }
+        // Empty hostname or empty last label
+        return false;
+    }
+
+    private static boolean isValidLabel(@NonNull String hostname, int labelStart, int labelEnd) {
+        int labelLength = labelEnd - labelStart;
+        if ((labelLength < 1) || (labelLength > MAX_LABEL_LENGTH)) {
+            return false;
+        }
+        if (!isLetterOrDigit(hostname.charAt(labelStart))
+                || !isLetterOrDigit(hostname.charAt(labelEnd - 1))) {
+            return false;
+        }
+        for (int i = labelStart + 1; i < labelEnd - 1; i++) {
+            char c = hostname.charAt(i);
+            if (!isLetterOrDigit(c) && (c != '-')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isLetter(char c) {
+        return ((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z'));
+    }
+
+    private static boolean isLetterOrDigit(char c) {
+        return isLetter(c) || ((c >= '0') && (c <= '9'));
+    }
+}
@@ -1,55 +1,121 @@
 package com.datatheorem.android.trustkit.config;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Base64;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import com.datatheorem.android.trustkit.utils.Sha256Digest;
+
 import java.security.cert.Certificate;
 
 
 /**
  * A pin is the base64-encoded SHA-256 hash of the certificate's Subject Public Key Info, as
  * described in the HPKP RFC https://tools.ietf.org/html/rfc7469s .
+ *
+ * The hash is stored as four longs so that pins can be compared and hashed without allocating
+ * anything; the base64 representation is only generated when needed (for logs and reports).
  */
 public final class PublicKeyPin {
 
-    @NonNull private final String pin;
+    private static final int SPKI_HASH_LENGTH = 32;
+
+    // The 32 bytes of the SHA-256 hash, in big-endian order
+    private final long hash0;
+    private final long hash1;
+    private final long hash2;
+    private final long hash3;
+
+    // The base64 representation of the pin, lazily generated
+    @Nullable private String pin;
 
     public PublicKeyPin(@NonNull Certificate certificate) {
         // Generate the certificate's spki pin
-        MessageDigest digest;
-        try {
-            digest = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
-            throw new IllegalStateException("Should never happen");
-        }
-        digest.reset();
-
         byte[] spki = certificate.getPublicKey().getEncoded();
-        byte[] spkiHash = digest.digest(spki);
-        pin = Base64.encodeToString(spkiHash, Base64.DEFAULT).trim();
+        byte[] spkiHash = Sha256Digest.digest(spki);
+        hash0 = readLong(spkiHash, 0);
+        hash1 = readLong(spkiHash, 8);
+        hash2 = readLong(spkiHash, 16);
+        hash3 = readLong(spkiHash, 24);
     }
 
     public PublicKeyPin(@NonNull String spkiPin) {
         // Validate the format of the pin
         byte[] spkiSha256Hash = Base64.decode(spkiPin, Base64.DEFAULT);
-        if (spkiSha256Hash.length != 32) {
+        if (spkiSha256Hash.length != SPKI_HASH_LENGTH) {
             throw new IllegalArgumentException("Invalid pin: length is not 32 bytes");
         }
+        hash0 = readLong(spkiSha256Hash, 0);
+        hash1 = readLong(spkiSha256Hash, 8);
+        hash2 = readLong(spkiSha256Hash, 16);
+        hash3 = readLong(spkiSha256Hash, 24);
         pin = spkiPin.trim();
     }
 
+    /**
+     * Create a pin from the raw SHA-256 hash of the Subject Public Key Info, as returned by
+     * {@link #toByteArray()}.
+     */
+    public PublicKeyPin(@NonNull byte[] spkiSha256Hash) {
+        if (spkiSha256Hash.length != SPKI_HASH_LENGTH) {
+            throw new IllegalArgumentException("Invalid pin: length is not 32 bytes");
+        }
+        hash0 = readLong(spkiSha256Hash, 0);
+        hash1 = readLong(spkiSha256Hash, 8);
+        hash2 = readLong(spkiSha256Hash, 16);
+        hash3 = readLong(spkiSha256Hash, 24);
+    }
+
+    private static long readLong(@NonNull byte[] data, int offset) {
+        long result = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            result = (result << 8) | (data[i] & 0xff);
+        }
+        return result;
+    }
+
+    private static void writeLong(long value, @NonNull byte[] data, int offset) {
+        for (int i = offset + 7; i >= offset; i--) {
+            data[i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    /**
+     * Return the raw SHA-256 hash of the Subject Public Key Info.
+     */
+    @NonNull
+    public byte[] toByteArray() {
+        byte[] spkiHash = new byte[SPKI_HASH_LENGTH];
+        writeLong(hash0, spkiHash, 0);
+        writeLong(hash1, spkiHash, 8);
+        writeLong(hash2, spkiHash, 16);
+        writeLong(hash3, spkiHash, 24);
+        return spkiHash;
+    }
+
     @Override
     public boolean equals(Object arg0) {
-        return (arg0 instanceof PublicKeyPin) && arg0.toString().equals(this.toString());
+        if (!(arg0 instanceof PublicKeyPin)) {
+            return false;
+        }
+        // Compare all the bits regardless of where the first difference is
+        PublicKeyPin other = (PublicKeyPin) arg0;
+        return ((hash0 ^ other.hash0) | (hash1 ^ other.hash1) | (hash2 ^ other.hash2)
+                | (hash3 ^ other.hash3)) == 0;
     }
 
     @Override
     public int hashCode() {
-        return pin.hashCode();
+        // The value is a SHA-256 hash so any of its bits will do
+        return (int) (hash0 ^ (hash0 >>> 32));
     }
 
     @Override
-    public String toString(){ return pin; }
+    public String toString() {
+        if (pin == null) {
+            pin = Base64.encodeToString(toByteArray(), Base64.NO_WRAP);
+        }
+        return pin;
+    }
 }
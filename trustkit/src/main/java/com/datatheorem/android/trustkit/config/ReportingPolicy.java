@@ -0,0 +1,83 @@
+package com.datatheorem.android.trustkit.config;
+
+import android.support.annotation.Nullable;
+
+
+/**
+ * The settings for uploading pin failure reports, which are shared by all the domains in the
+ * policy. They are configured with a {@code <trustkit-config>} tag placed directly within the
+ * {@code <network-security-config>} tag.
+ */
+public final class ReportingPolicy {
+
+    /** The policy used when no settings were configured. */
+    public static final ReportingPolicy DEFAULT = new ReportingPolicy(null, null, null);
+
+    private final int reportBatchSize;
+    private final int reportFlushInterval;
+    private final double reportSamplingRate;
+
+    ReportingPolicy(@Nullable Integer reportBatchSize, @Nullable Integer reportFlushInterval,
+                    @Nullable Double reportSamplingRate) {
+        // Send one report per request by default
+        if (reportBatchSize == null) {
+            this.reportBatchSize = 1;
+        } else if (reportBatchSize < 1) {
+            throw new ConfigurationException("Invalid reportBatchSize: " + reportBatchSize);
+        } else {
+            this.reportBatchSize = reportBatchSize;
+        }
+
+        // Send reports right away by default
+        if (reportFlushInterval == null) {
+            this.reportFlushInterval = 0;
+        } else if (reportFlushInterval < 0) {
+            throw new ConfigurationException("Invalid reportFlushInterval: "
+                    + reportFlushInterval);
+        } else {
+            this.reportFlushInterval = reportFlushInterval;
+        }
+
+        // Reports are sent by all devices by default
+        if (reportSamplingRate == null) {
+            this.reportSamplingRate = 1;
+        } else if (!((reportSamplingRate >= 0) && (reportSamplingRate <= 1))) {
+            throw new ConfigurationException("Invalid reportSamplingRate: " + reportSamplingRate);
+        } else {
+            this.reportSamplingRate = reportSamplingRate;
+        }
+    }
+
+    /**
+     * The maximum number of reports to send to a report URI in a single request. When greater
+     * than 1, the reports are sent as a JSON array instead of a single JSON object.
+     */
+    public int getReportBatchSize() {
+        return reportBatchSize;
+    }
+
+    /**
+     * The number of seconds to wait after a report was generated before uploading it, so that
+     * other reports generated in the meantime can be sent in the same request.
+     */
+    public int getReportFlushInterval() {
+        return reportFlushInterval;
+    }
+
+    /**
+     * The fraction of devices, between 0 and 1, that send pin failure reports for the domains that
+     * do not have their own reportSamplingRate.
+     */
+    public double getReportSamplingRate() {
+        return reportSamplingRate;
+    }
+
+    @Override
+    public String toString() {
+        return "ReportingPolicy{" +
+                "reportBatchSize = " + reportBatchSize + "\n" +
+                "reportFlushInterval = " + reportFlushInterval + "\n" +
+                "reportSamplingRate = " + reportSamplingRate + "\n" +
+                "}";
+    }
+}
@@ -8,21 +8,32 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 
 public class TrustKitConfiguration {
 
-    @NonNull private final Set<DomainPinningPolicy> domainPolicies;
+    // The policies indexed by their domain, so that the policy for a hostname can be found with
+    // one lookup per label in the hostname regardless of how many domains are pinned
+    @NonNull private final Map<String, DomainPinningPolicy> domainPolicies;
 
     // For simplicity, this works slightly differently than Android N as we use shouldOverridePins
     // as a global setting instead of a per-<certificates> setting like Android N does
     private final boolean shouldOverridePins;
     @Nullable private final Set<Certificate> debugCaCertificates;
 
+    // The settings for uploading reports, shared by all domains
+    @NonNull private final ReportingPolicy reportingPolicy;
+
 
     public static TrustKitConfiguration fromXmlPolicy(@NonNull Context context,
                                                       @NonNull XmlPullParser parser)
@@ -30,30 +41,50 @@ public class TrustKitConfiguration {
         return TrustKitConfigurationParser.fromXmlPolicy(context, parser);
     }
 
+    /**
+     * Load a policy that was compiled at build time from the App's XML policy, which is much
+     * faster than parsing the XML policy.
+     *
+     * @throws IOException if the compiled policy could not be read or was compiled for a
+     * different version of TrustKit.
+     */
+    public static TrustKitConfiguration fromCompiledPolicy(@NonNull InputStream stream)
+            throws CertificateException, IOException {
+        return CompiledPolicy.read(stream);
+    }
+
 
-    protected TrustKitConfiguration(@NonNull Set<DomainPinningPolicy> domainConfigSet) {
+    protected TrustKitConfiguration(@NonNull Collection<DomainPinningPolicy> domainConfigSet) {
         this(domainConfigSet, false, null);
     }
 
-    protected TrustKitConfiguration(@NonNull Set<DomainPinningPolicy> domainConfigSet,
+    protected TrustKitConfiguration(@NonNull Collection<DomainPinningPolicy> domainConfigSet,
                                   boolean shouldOverridePins,
                                   @Nullable Set<Certificate> debugCaCerts) {
+        this(domainConfigSet, shouldOverridePins, debugCaCerts, ReportingPolicy.DEFAULT);
+    }
+
+    protected TrustKitConfiguration(@NonNull Collection<DomainPinningPolicy> domainConfigSet,
+                                    boolean shouldOverridePins,
+                                    @Nullable Set<Certificate> debugCaCerts,
+                                    @NonNull ReportingPolicy reportingPolicy) {
 
         if (domainConfigSet.size() < 1) {
             throw new ConfigurationException("Policy contains 0 domains to pin");
         }
 
-        Set<String> hostnameSet = new HashSet<>();
+        Map<String, DomainPinningPolicy> domainPolicies = new HashMap<>();
         for (DomainPinningPolicy domainConfig : domainConfigSet) {
-            if (hostnameSet.contains(domainConfig.getHostname())) {
+            if (domainPolicies.containsKey(domainConfig.getHostname())) {
                 throw new ConfigurationException("Policy contains the same domain defined twice: "
                         + domainConfig.getHostname());
             }
-            hostnameSet.add(domainConfig.getHostname());
+            domainPolicies.put(domainConfig.getHostname(), domainConfig);
         }
-        this.domainPolicies = domainConfigSet;
+        this.domainPolicies = domainPolicies;
         this.shouldOverridePins = shouldOverridePins;
         this.debugCaCertificates = debugCaCerts;
+        this.reportingPolicy = reportingPolicy;
     }
 
     public boolean shouldOverridePins() {
@@ -65,6 +96,38 @@ public class TrustKitConfiguration {
         return debugCaCertificates;
     }
 
+    @NonNull
+    public ReportingPolicy getReportingPolicy() {
+        return reportingPolicy;
+    }
+
+    /**
+     * Return a configuration with the same settings as this one, in which the domain policies that
+     * did not change compared to the supplied previous configuration are the previous
+     * configuration's instances.
+     *
+     * TrustKit uses this when its configuration gets replaced: the trust managers, SSL contexts
+     * and validation results it caches for a domain are tied to the domain's policy instance, and
+     * can then keep being used for the domains whose policy did not change.
+     */
+    @NonNull
+    public TrustKitConfiguration reusePolicies(
+            @NonNull TrustKitConfiguration previousConfiguration) {
+        List<DomainPinningPolicy> policies = new ArrayList<>();
+        for (DomainPinningPolicy policy : domainPolicies.values()) {
+            DomainPinningPolicy previousPolicy =
+                    previousConfiguration.domainPolicies.get(policy.getHostname());
+            policies.add(policy.equals(previousPolicy) ? previousPolicy : policy);
+        }
+        return new TrustKitConfiguration(policies, shouldOverridePins, debugCaCertificates,
+                reportingPolicy);
+    }
+
+    @NonNull
+    Set<DomainPinningPolicy> getAllPolicies() {
+        return new HashSet<>(domainPolicies.values());
+    }
+
     /**
      * Get the {@link DomainPinningPolicy} corresponding to the provided hostname.
      * When matching the most specific matching domain rule will be used, if no match exists
@@ -77,38 +140,26 @@ public class TrustKitConfiguration {
     @Nullable
     public DomainPinningPolicy getPolicyForHostname(@NonNull String serverHostname) {
         // Check if the hostname seems valid
-        DomainValidator domainValidator = DomainValidator.getInstance(false);
-        if (!domainValidator.isValid(serverHostname)) {
+        if (!HostnameValidator.isValid(serverHostname)) {
             throw new IllegalArgumentException("Invalid domain supplied: " + serverHostname);
         }
 
-        DomainPinningPolicy bestMatchPolicy = null;
-        for (DomainPinningPolicy domainPolicy : this.domainPolicies) {
-            if (domainPolicy.getHostname().equals(serverHostname)) {
-                // Found an exact match for this domain
-                bestMatchPolicy = domainPolicy;
-                break;
-            }
+        // Look for an exact match for this domain
+        DomainPinningPolicy domainPolicy = domainPolicies.get(serverHostname);
+        if (domainPolicy != null) {
+            return domainPolicy;
+        }
 
-            // Look for the best match for pinning policies that include subdomains
-            if (domainPolicy.shouldIncludeSubdomains()
-                    && isSubdomain(domainPolicy.getHostname(), serverHostname)) {
-                if (bestMatchPolicy == null) {
-                    bestMatchPolicy = domainPolicy;
-                } else if (domainPolicy.getHostname().length() > bestMatchPolicy.getHostname().length()) {
-                    bestMatchPolicy = domainPolicy;
-                }
+        // Then look for the closest parent domain with a policy that includes subdomains; this
+        // matches subdomains of subdomains too, similar to how Android N handles includeSubdomains
+        int labelEndIndex = serverHostname.indexOf('.');
+        while (labelEndIndex != -1) {
+            domainPolicy = domainPolicies.get(serverHostname.substring(labelEndIndex + 1));
+            if ((domainPolicy != null) && domainPolicy.shouldIncludeSubdomains()) {
+                return domainPolicy;
             }
+            labelEndIndex = serverHostname.indexOf('.', labelEndIndex + 1);
         }
-        return bestMatchPolicy;
-    }
-
-    /**
-     * Return true for all subdomains, including subdomains of subdomains, similar to how
-     * Android N handles includeSubdomains
-     */
-    private static boolean isSubdomain(@NonNull String domain, @NonNull String subdomain) {
-        return subdomain.endsWith(domain)
-                && subdomain.charAt(subdomain.length() - domain.length() - 1) == '.';
+        return null;
     }
 }
@@ -3,6 +3,7 @@ package com.datatheorem.android.trustkit.config;
 
 import android.content.Context;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
 import com.datatheorem.android.trustkit.utils.TrustKitLog;
@@ -40,6 +41,7 @@ class TrustKitConfigurationParser {
         List<DomainPinningPolicy.Builder> builderList = new ArrayList<>();
 
         DebugOverridesTag debugOverridesTag = null;
+        ReportingPolicy reportingPolicy = ReportingPolicy.DEFAULT;
 
         int eventType = parser.getEventType();
         while (eventType != XmlPullParser.END_DOCUMENT) {
@@ -49,6 +51,10 @@ class TrustKitConfigurationParser {
                 } else if ("debug-overrides".equals(parser.getName())) {
                     // The Debug-overrides option is global and not tied to a specific domain
                     debugOverridesTag = readDebugOverrides(context, parser);
+                } else if ("trustkit-config".equals(parser.getName())) {
+                    // A trustkit-config tag outside of any domain-config contains the global
+                    // reporting settings
+                    reportingPolicy = readGlobalTrustkitConfig(parser);
                 }
             }
             eventType = parser.next();
@@ -56,16 +62,17 @@ class TrustKitConfigurationParser {
 
         // Finally, store the result of the parsed policy in our configuration object
         TrustKitConfiguration config;
-        HashSet<DomainPinningPolicy> domainConfigSet = new HashSet<>();
+        // Not a Set, so that a domain defined twice gets rejected even if both policies are equal
+        List<DomainPinningPolicy> domainConfigList = new ArrayList<>();
         for (DomainPinningPolicy.Builder builder : builderList) {
-            domainConfigSet.add(builder.build());
+            domainConfigList.add(builder.build());
         }
 
         if (debugOverridesTag != null) {
-            config = new TrustKitConfiguration(domainConfigSet, debugOverridesTag.overridePins,
-                    debugOverridesTag.debugCaCertificates);
+            config = new TrustKitConfiguration(domainConfigList, debugOverridesTag.overridePins,
+                    debugOverridesTag.debugCaCertificates, reportingPolicy);
         } else {
-            config = new TrustKitConfiguration(domainConfigSet);
+            config = new TrustKitConfiguration(domainConfigList, false, null, reportingPolicy);
         }
         return config;
     }
@@ -102,8 +109,11 @@ class TrustKitConfigurationParser {
                 } else if ("trustkit-config".equals(parser.getName())) {
                     TrustkitConfigTag trustkitTag = readTrustkitConfig(parser);
                     builder.setReportUris(trustkitTag.reportUris)
+                            .setGzipReportUris(trustkitTag.gzipReportUris)
                             .setShouldEnforcePinning(trustkitTag.enforcePinning)
-                            .setShouldDisableDefaultReportUri(trustkitTag.disableDefaultReportUri);
+                            .setShouldDisableDefaultReportUri(trustkitTag.disableDefaultReportUri)
+                            .setValidationCacheTtl(trustkitTag.validationCacheTtl)
+                            .setReportSamplingRate(trustkitTag.reportSamplingRate);
                 }
             }
             eventType = parser.next();
@@ -162,7 +172,10 @@ class TrustKitConfigurationParser {
     private static class TrustkitConfigTag {
         Boolean enforcePinning = null;
         Boolean disableDefaultReportUri = null;
+        Integer validationCacheTtl = null;
+        Double reportSamplingRate = null;
         Set<String> reportUris;
+        Set<String> gzipReportUris;
     }
 
     @NonNull
@@ -172,6 +185,7 @@ class TrustKitConfigurationParser {
 
         TrustkitConfigTag result = new TrustkitConfigTag();
         Set<String> reportUris = new HashSet<>();
+        Set<String> gzipReportUris = new HashSet<>();
 
         // Look for the enforcePinning attribute
         String enforcePinning = parser.getAttributeValue(null, "enforcePinning");
@@ -185,21 +199,78 @@ class TrustKitConfigurationParser {
             result.disableDefaultReportUri = Boolean.parseBoolean(disableDefaultReportUri);
         }
 
+        // Look for the validationCacheTtl attribute
+        String validationCacheTtl = parser.getAttributeValue(null, "validationCacheTtl");
+        if (validationCacheTtl != null) {
+            try {
+                result.validationCacheTtl = Integer.parseInt(validationCacheTtl);
+            } catch (NumberFormatException e) {
+                throw new ConfigurationException("Invalid validationCacheTtl in trustkit-config");
+            }
+        }
+
+        // Look for the reportSamplingRate attribute
+        result.reportSamplingRate = readDoubleAttribute(parser, "reportSamplingRate");
+
         // Parse until the corresponding close trustkit-config tag
         int eventType = parser.next();
         while (!((eventType == XmlPullParser.END_TAG) && "trustkit-config".equals(parser.getName()))) {
             // Look for the next report-uri tag
             if ((eventType == XmlPullParser.START_TAG) && "report-uri".equals(parser.getName())) {
-                // Found one - parse the report-uri value
-                reportUris.add(parser.nextText());
+                // Found one - look for the gzip attribute and parse the report-uri value
+                boolean gzip = Boolean.parseBoolean(parser.getAttributeValue(null, "gzip"));
+                String reportUri = parser.nextText();
+                reportUris.add(reportUri);
+                if (gzip) {
+                    gzipReportUris.add(reportUri);
+                }
             }
             eventType = parser.next();
         }
 
         result.reportUris = reportUris;
+        result.gzipReportUris = gzipReportUris;
         return result;
     }
 
+    @NonNull
+    private static ReportingPolicy readGlobalTrustkitConfig(@NonNull XmlPullParser parser)
+            throws IOException, XmlPullParserException {
+        parser.require(XmlPullParser.START_TAG, null, "trustkit-config");
+        Integer reportBatchSize = readIntegerAttribute(parser, "reportBatchSize");
+        Integer reportFlushInterval = readIntegerAttribute(parser, "reportFlushInterval");
+        Double reportSamplingRate = readDoubleAttribute(parser, "reportSamplingRate");
+        return new ReportingPolicy(reportBatchSize, reportFlushInterval, reportSamplingRate);
+    }
+
+    @Nullable
+    private static Integer readIntegerAttribute(@NonNull XmlPullParser parser,
+                                                @NonNull String attributeName) {
+        String value = parser.getAttributeValue(null, attributeName);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new ConfigurationException("Invalid " + attributeName + " in trustkit-config");
+        }
+    }
+
+    @Nullable
+    private static Double readDoubleAttribute(@NonNull XmlPullParser parser,
+                                              @NonNull String attributeName) {
+        String value = parser.getAttributeValue(null, attributeName);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new ConfigurationException("Invalid " + attributeName + " in trustkit-config");
+        }
+    }
+
     private static class DomainTag {
         Boolean includeSubdomains = null;
         String hostname = null;
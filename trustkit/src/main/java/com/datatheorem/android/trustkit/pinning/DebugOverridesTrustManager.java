@@ -1,5 +1,9 @@
 package com.datatheorem.android.trustkit.pinning;
 
+import android.net.http.X509TrustManagerExtensions;
+import android.support.annotation.NonNull;
+import android.support.annotation.RequiresApi;
+
 import java.io.IOException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
@@ -7,7 +11,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
-import java.util.Enumeration;
+import java.util.List;
 import java.util.Set;
 
 import javax.net.ssl.TrustManager;
@@ -20,27 +24,33 @@ import javax.net.ssl.X509TrustManager;
  * Android device (as Android N automatically takes care of this). It returns a trust manager that
  * trusts the supplied debug CA certificates, in addition to the Android system and user CA
  * certificates.
+ *
+ * Chains are first validated against the debug CA certificates only, and then against the system
+ * trust manager if that failed; this avoids copying the whole Android CA store into a new
+ * KeyStore.
  */
-class DebugOverridesTrustManager {
+@RequiresApi(api = 17)
+class DebugOverridesTrustManager implements X509TrustManager {
+
+    // Trusts the debug CA certificates only
+    @NonNull private final X509TrustManager debugCaTrustManager;
+    @NonNull private final X509TrustManagerExtensions debugCaTrustManagerExtensions;
+
+    // Created when first needed as the system trust manager is loaded lazily
+    private volatile X509TrustManagerExtensions systemTrustManagerExtensions = null;
+
+    private DebugOverridesTrustManager(@NonNull X509TrustManager debugCaTrustManager) {
+        this.debugCaTrustManager = debugCaTrustManager;
+        this.debugCaTrustManagerExtensions = new X509TrustManagerExtensions(debugCaTrustManager);
+    }
 
     public static X509TrustManager getInstance(Set<Certificate> debugCaCerts) throws
             CertificateException, IOException, KeyStoreException, NoSuchAlgorithmException {
         X509TrustManager debugTrustManager = null;
 
-        // Create a KeyStore containing our trusted CAs and the Android user and system CAs
-        KeyStore systemKeyStore = KeyStore.getInstance("AndroidCAStore");
-        systemKeyStore.load(null, null);
+        // Create a KeyStore containing our trusted CAs
         KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
         keyStore.load(null, null);
-        // Copy the user and system CAs from the Android store - is there a faster way to do this?
-        Enumeration aliases = systemKeyStore.aliases();
-        while (aliases.hasMoreElements()) {
-            String alias = (String) aliases.nextElement();
-            X509Certificate cert = (X509Certificate) systemKeyStore.getCertificate(alias);
-            keyStore.setCertificateEntry(alias , cert);
-        }
-
-        // Add the extra debug CAs to the store
         for (Certificate caCert : debugCaCerts) {
             String alias = "debug: " + ((X509Certificate) caCert).getSubjectDN().getName();
             keyStore.setCertificateEntry(alias , caCert);
@@ -50,7 +60,6 @@ class DebugOverridesTrustManager {
         String tmfAlgorithm = TrustManagerFactory.getDefaultAlgorithm();
         TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(tmfAlgorithm);
         trustManagerFactory.init(keyStore);
-        trustManagerFactory.getTrustManagers();
 
         for (TrustManager trustManager : trustManagerFactory.getTrustManagers()) {
             if (trustManager instanceof X509TrustManager) {
@@ -61,6 +70,66 @@ class DebugOverridesTrustManager {
         if (debugTrustManager == null) {
             throw new IllegalStateException("Should never happen");
         }
-        return debugTrustManager;
+        return new DebugOverridesTrustManager(debugTrustManager);
+    }
+
+    /**
+     * Validate the chain like X509TrustManagerExtensions.checkServerTrusted(), and return the
+     * validated chain.
+     */
+    @NonNull
+    List<X509Certificate> checkServerTrusted(@NonNull X509Certificate[] chain,
+                                             @NonNull String authType, @NonNull String host)
+            throws CertificateException {
+        try {
+            return debugCaTrustManagerExtensions.checkServerTrusted(chain, authType, host);
+        } catch (CertificateException e) {
+            // Not issued by a debug CA
+            return getSystemTrustManagerExtensions().checkServerTrusted(chain, authType, host);
+        }
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType)
+            throws CertificateException {
+        try {
+            debugCaTrustManager.checkServerTrusted(chain, authType);
+        } catch (CertificateException e) {
+            SystemTrustManager.getInstance().checkServerTrusted(chain, authType);
+        }
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType)
+            throws CertificateException {
+        try {
+            debugCaTrustManager.checkClientTrusted(chain, authType);
+        } catch (CertificateException e) {
+            SystemTrustManager.getInstance().checkClientTrusted(chain, authType);
+        }
+    }
+
+    @Override
+    public X509Certificate[] getAcceptedIssuers() {
+        X509Certificate[] debugCaIssuers = debugCaTrustManager.getAcceptedIssuers();
+        X509Certificate[] systemIssuers = SystemTrustManager.getInstance().getAcceptedIssuers();
+        X509Certificate[] acceptedIssuers =
+                new X509Certificate[debugCaIssuers.length + systemIssuers.length];
+        System.arraycopy(debugCaIssuers, 0, acceptedIssuers, 0, debugCaIssuers.length);
+        System.arraycopy(systemIssuers, 0, acceptedIssuers, debugCaIssuers.length,
+                systemIssuers.length);
+        return acceptedIssuers;
+    }
+
+    @NonNull
+    private X509TrustManagerExtensions getSystemTrustManagerExtensions() {
+        X509TrustManagerExtensions trustManagerExtensions = systemTrustManagerExtensions;
+        if (trustManagerExtensions == null) {
+            // Creating it more than once is harmless
+            trustManagerExtensions =
+                    new X509TrustManagerExtensions(SystemTrustManager.getInstance());
+            systemTrustManagerExtensions = trustManagerExtensions;
+        }
+        return trustManagerExtensions;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,123 @@
+package com.datatheorem.android.trustkit.pinning;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.RequiresApi;
+
+import java.net.Socket;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.X509ExtendedTrustManager;
+import javax.net.ssl.X509TrustManager;
+
+
+/**
+ * A trust manager that can be used for connections to any server: the server's hostname is
+ * retrieved from the SSL socket or engine being handshaked, and the corresponding pinning policy is
+ * enforced by delegating validation to the trust manager returned by
+ * {@link TrustManagerBuilder#getTrustManager(String)}.
+ *
+ * This allows a single {@code SSLContext} (and its SSL session cache) to be shared by all the
+ * connections of an HTTP client's connection pool. It requires X509ExtendedTrustManager, which is
+ * only available on Android N and later.
+ */
+@RequiresApi(api = 24)
+class MultiHostPinningTrustManager extends X509ExtendedTrustManager {
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket)
+            throws CertificateException {
+        String serverHostname = null;
+        if (socket instanceof SSLSocket) {
+            serverHostname = getPeerHost(((SSLSocket) socket).getHandshakeSession());
+        }
+        X509TrustManager trustManager = getTrustManagerForServer(serverHostname);
+        if (trustManager instanceof X509ExtendedTrustManager) {
+            // Not pinned; let the system trust manager apply the Network Security Configuration
+            ((X509ExtendedTrustManager) trustManager).checkServerTrusted(chain, authType, socket);
+        } else {
+            trustManager.checkServerTrusted(chain, authType);
+        }
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine)
+            throws CertificateException {
+        String serverHostname = null;
+        if (engine != null) {
+            serverHostname = getPeerHost(engine.getHandshakeSession());
+            if (serverHostname == null) {
+                serverHostname = engine.getPeerHost();
+            }
+        }
+        X509TrustManager trustManager = getTrustManagerForServer(serverHostname);
+        if (trustManager instanceof X509ExtendedTrustManager) {
+            // Not pinned; let the system trust manager apply the Network Security Configuration
+            ((X509ExtendedTrustManager) trustManager).checkServerTrusted(chain, authType, engine);
+        } else {
+            trustManager.checkServerTrusted(chain, authType);
+        }
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType)
+            throws CertificateException {
+        // Without a socket or an engine there is no way to know which server is being validated
+        throw new CertificateException("Could not retrieve the server's hostname; the socket or "
+                + "engine must be supplied");
+    }
+
+    @Nullable
+    private static String getPeerHost(@Nullable SSLSession handshakeSession) {
+        if (handshakeSession == null) {
+            return null;
+        }
+        return handshakeSession.getPeerHost();
+    }
+
+    @NonNull
+    private static X509TrustManager getTrustManagerForServer(@Nullable String serverHostname)
+            throws CertificateException {
+        if ((serverHostname == null) || (serverHostname.isEmpty())) {
+            // The connection was created without a hostname; we can't enforce pinning
+            throw new CertificateException("Could not retrieve the server's hostname from the SSL "
+                    + "session");
+        }
+        try {
+            return TrustManagerBuilder.getTrustManager(serverHostname);
+        } catch (IllegalArgumentException e) {
+            // Not a domain name (such as an IP address) so it cannot be pinned; only do baseline
+            // validation
+            return TrustManagerBuilder.getBaselineTrustManager();
+        }
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket)
+            throws CertificateException {
+        throw new CertificateException("Client certificates not supported!");
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine)
+            throws CertificateException {
+        throw new CertificateException("Client certificates not supported!");
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType)
+            throws CertificateException {
+        throw new CertificateException("Client certificates not supported!");
+    }
+
+    @Override
+    public X509Certificate[] getAcceptedIssuers() {
+        // getAcceptedIssuers is meant to be used to determine which trust anchors the server will
+        // accept when verifying clients.
+        return new X509Certificate[0];
+    }
+}
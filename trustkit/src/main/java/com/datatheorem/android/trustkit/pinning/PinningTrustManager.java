@@ -22,37 +22,62 @@ import javax.net.ssl.X509TrustManager;
 @RequiresApi(api = 17)
 class PinningTrustManager implements X509TrustManager {
 
+    // The pins computed for the certificates we have already seen, shared by all trust managers
+    private static final PublicKeyPinCache publicKeyPinCache =
+            new PublicKeyPinCache(PublicKeyPinCache.DEFAULT_MAX_SIZE);
+
+    // The chains that recently passed validation, for policies that enable validationCacheTtl
+    private static final ValidatedChainCache validatedChainCache =
+            new ValidatedChainCache(ValidatedChainCache.DEFAULT_MAX_SIZE);
+
     // The trust manager we use to do the default SSL validation
     private final X509TrustManagerExtensions baselineTrustManager;
+    // Used instead when debug-overrides is set, as it combines two trust managers
+    private final DebugOverridesTrustManager debugOverridesTrustManager;
 
     private final String serverHostname;
     private final DomainPinningPolicy serverConfig;
 
+    // Whether the OS already enforces the policy's pins, as it comes from the manifest's policy
+    private final boolean isPinningEnforcedBySystem;
+
 
     /**
      * A trust manager which implements path, hostname and pinning validation for a given hostname
      * and sends pinning failure reports if validation failed.
      *
      * Before Android N, the PinningTrustManager implements pinning validation itself. On Android
-     * N and later the OS' implementation is used instead for pinning validation.
+     * N and later the OS' implementation is used instead for pinning validation, unless the
+     * policy was not part of the App's manifest policy because it was set at runtime.
      *
      * @param serverHostname: The hostname of the server whose identity is being validated. It will
      *                      be validated against the name(s) the leaf certificate was issued for
      *                      when performing hostname validation.
      * @param serverConfig: The pinning policy to be enforced when doing pinning validation.
      * @param baselineTrustManager: The trust manager to use for path validation.
+     * @param isPinningEnforcedBySystem: Whether the policy is the one from the App's manifest
+     *                                 policy, whose pins are enforced by the OS on Android N and
+     *                                 later.
      */
     public PinningTrustManager(@NonNull String serverHostname,
                                @NonNull DomainPinningPolicy serverConfig,
-                               @NonNull X509TrustManager baselineTrustManager) {
+                               @NonNull X509TrustManager baselineTrustManager,
+                               boolean isPinningEnforcedBySystem) {
         // Store server's information
         this.serverHostname = serverHostname;
         this.serverConfig = serverConfig;
+        this.isPinningEnforcedBySystem = isPinningEnforcedBySystem;
 
         if (Build.VERSION.SDK_INT < 17) {
             // No pinning validation at all for API level < 17
             // Because X509TrustManagerExtensions is not available
             this.baselineTrustManager = null;
+            this.debugOverridesTrustManager = null;
+        } else if (baselineTrustManager instanceof DebugOverridesTrustManager) {
+            // X509TrustManagerExtensions only accepts the platform's trust managers before
+            // Android N, so the debug overrides trust manager wraps each of its trust managers
+            this.baselineTrustManager = null;
+            this.debugOverridesTrustManager = (DebugOverridesTrustManager) baselineTrustManager;
         } else {
             // We use the default trust manager so we can perform regular SSL validation and we wrap
             // it in the Android-specific X509TrustManagerExtensions, which provides an API to
@@ -61,6 +86,7 @@ class PinningTrustManager implements X509TrustManager {
             // checkServerTrusted() where the hostname can be supplied, allowing it to call the
             // (system) RootTrustManager on Android N
             this.baselineTrustManager = new X509TrustManagerExtensions(baselineTrustManager);
+            this.debugOverridesTrustManager = null;
         }
     }
 
@@ -85,6 +111,16 @@ class PinningTrustManager implements X509TrustManager {
     @Override
     public void checkServerTrusted(X509Certificate[] chain, String authType)
             throws CertificateException {
+        // Skip validation if this exact chain was successfully validated recently
+        ValidatedChainCache.Key validatedChainKey = null;
+        if (serverConfig.getValidationCacheTtl() > 0) {
+            validatedChainKey = new ValidatedChainCache.Key(serverHostname, authType, chain,
+                    serverConfig);
+            if (validatedChainCache.contains(validatedChainKey)) {
+                return;
+            }
+        }
+
         boolean didChainValidationFail = false; // Includes path and hostname validation
         boolean didPinningValidationFail = false;
 
@@ -105,8 +141,13 @@ class PinningTrustManager implements X509TrustManager {
         // extra certificates an attacker might add: https://koz.io/pinning-cve-2016-2402/
         try {
 
-            validatedServerChain = baselineTrustManager.checkServerTrusted(chain, authType,
-                    serverHostname);
+            if (debugOverridesTrustManager != null) {
+                validatedServerChain = debugOverridesTrustManager.checkServerTrusted(chain,
+                        authType, serverHostname);
+            } else {
+                validatedServerChain = baselineTrustManager.checkServerTrusted(chain, authType,
+                        serverHostname);
+            }
 
         } catch (CertificateException e) {
             if ((Build.VERSION.SDK_INT >= 24)
@@ -121,8 +162,10 @@ class PinningTrustManager implements X509TrustManager {
         }
 
         // Before Android N, manually perform pinning validation on the verified chain if path
-        // validation succeeded. On Android N this was already taken care of by the netsec policy
-        if ((Build.VERSION.SDK_INT < 24) && (!didChainValidationFail)) {
+        // validation succeeded. On Android N this was already taken care of by the netsec policy,
+        // except for the policies that were set at runtime
+        if ((!isPinningEnforcedBySystem) && (!didChainValidationFail)
+                && (!didPinningValidationFail)) {
 
             boolean hasPinningPolicyExpired = (serverConfig.getExpirationDate() != null)
                     && (serverConfig.getExpirationDate().compareTo(new Date()) < 0);
@@ -160,19 +203,24 @@ class PinningTrustManager implements X509TrustManager {
             errorBuilder.append("\n  Peer certificate chain: ");
             for (Certificate certificate : validatedServerChain) {
                 errorBuilder.append("\n    ")
-                        .append(new PublicKeyPin(certificate))
+                        .append(publicKeyPinCache.getPin(certificate))
                         .append(" - ")
                         .append(((X509Certificate) certificate).getSubjectDN());
             }
             throw new CertificateException(errorBuilder.toString());
         }
+
+        // Remember successful validations if enabled for this domain
+        if ((validatedChainKey != null) && (!didPinningValidationFail)) {
+            validatedChainCache.put(validatedChainKey, chain);
+        }
     }
 
     private static boolean isPinInChain(List<X509Certificate> verifiedServerChain,
                                         Set<PublicKeyPin> configuredPins) {
         boolean wasPinFound = false;
         for (Certificate certificate : verifiedServerChain) {
-            PublicKeyPin certificatePin = new PublicKeyPin(certificate);
+            PublicKeyPin certificatePin = publicKeyPinCache.getPin(certificate);
             if (configuredPins.contains(certificatePin)) {
                 // Pinning validation succeeded
                 wasPinFound = true;
@@ -182,6 +230,25 @@ class PinningTrustManager implements X509TrustManager {
         return wasPinFound;
     }
 
+    @NonNull
+    DomainPinningPolicy getServerConfig() {
+        return serverConfig;
+    }
+
+    /** Retrieve the cache of certificate pins, mainly to check its hit and miss counts.
+     */
+    @NonNull
+    static PublicKeyPinCache getPublicKeyPinCache() {
+        return publicKeyPinCache;
+    }
+
+    /** Retrieve the cache of validated chains, mainly to check its hit and miss counts.
+     */
+    @NonNull
+    static ValidatedChainCache getValidatedChainCache() {
+        return validatedChainCache;
+    }
+
     @Override
     public void checkClientTrusted(X509Certificate[] chain, String authType)
             throws CertificateException {
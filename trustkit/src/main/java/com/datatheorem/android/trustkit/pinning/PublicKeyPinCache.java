@@ -0,0 +1,38 @@
+package com.datatheorem.android.trustkit.pinning;
+
+import android.support.annotation.NonNull;
+import android.util.LruCache;
+
+import com.datatheorem.android.trustkit.config.PublicKeyPin;
+
+import java.security.cert.Certificate;
+
+
+/**
+ * A bounded cache of the SPKI pins computed for the certificates seen during pinning validation.
+ *
+ * Servers keep sending the same few intermediate and root certificates, so computing the pin of a
+ * certificate (which requires extracting and hashing its public key) only needs to be done once.
+ * Certificates are compared using their DER encoding, so two instances of the same certificate
+ * will map to the same cache entry. The cache is thread-safe and also keeps hit and miss counters.
+ */
+class PublicKeyPinCache extends LruCache<Certificate, PublicKeyPin> {
+
+    // Enough to hold the chains of the handful of servers an App usually connects to
+    static final int DEFAULT_MAX_SIZE = 64;
+
+    PublicKeyPinCache(int maxSize) {
+        super(maxSize);
+    }
+
+    @NonNull
+    PublicKeyPin getPin(@NonNull Certificate certificate) {
+        // get() never returns null here as create() always computes the pin on a cache miss
+        return get(certificate);
+    }
+
+    @Override
+    protected PublicKeyPin create(Certificate certificate) {
+        return new PublicKeyPin(certificate);
+    }
+}
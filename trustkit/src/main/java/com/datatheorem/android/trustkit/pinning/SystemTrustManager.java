@@ -3,6 +3,8 @@ package com.datatheorem.android.trustkit.pinning;
 
 import android.support.annotation.NonNull;
 
+import com.datatheorem.android.trustkit.utils.TrustKitLog;
+
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
@@ -14,22 +16,29 @@ import javax.net.ssl.X509TrustManager;
 
 public class SystemTrustManager {
 
-    private static final X509TrustManager systemTrustManager = getSystemTrustManager();
-
     /**
      * Retrieve the platform's default trust manager.
      * Depending on the device's API level, the trust manager will consecutively do path validation
      * (all API levels), hostname validation (API level 16 to ???), and pinning validation if a
      * network policy was configured (API level 24+).
      *
+     * The system's CA store is loaded and parsed the first time this is called, which is slow;
+     * see {@link com.datatheorem.android.trustkit.TrustKit#prewarm()}.
+     *
      * @return the platform's default trust manager.
      */
     @NonNull
     public static X509TrustManager getInstance() {
-        return systemTrustManager;
+        return SystemTrustManagerHolder.INSTANCE;
+    }
+
+    // Lazily creates the system trust manager
+    private static class SystemTrustManagerHolder {
+        private static final X509TrustManager INSTANCE = getSystemTrustManager();
     }
 
     private static X509TrustManager getSystemTrustManager() {
+        long startTime = System.nanoTime();
         X509TrustManager systemTrustManager = null;
         TrustManagerFactory trustManagerFactory;
         try {
@@ -55,6 +64,8 @@ public class SystemTrustManager {
         if (systemTrustManager == null) {
             throw new IllegalStateException("Should never happen");
         }
+        TrustKitLog.i("Loaded the system trust manager in "
+                + ((System.nanoTime() - startTime) / 1000000) + " ms");
         return systemTrustManager;
     }
 }
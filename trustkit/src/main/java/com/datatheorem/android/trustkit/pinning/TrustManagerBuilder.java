@@ -4,9 +4,11 @@ import android.os.Build;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.RequiresApi;
+import android.util.LruCache;
 
 import com.datatheorem.android.trustkit.TrustKit;
 import com.datatheorem.android.trustkit.config.DomainPinningPolicy;
+import com.datatheorem.android.trustkit.config.TrustKitConfiguration;
 import com.datatheorem.android.trustkit.reporting.BackgroundReporter;
 
 import java.io.IOException;
@@ -22,8 +24,15 @@ import javax.net.ssl.X509TrustManager;
 
 public class TrustManagerBuilder {
 
-    // The trust manager we will use to perform the default SSL validation
-    protected static X509TrustManager baselineTrustManager = null;
+    protected static boolean isInitialized = false;
+
+    // The trust manager we will use to perform the default SSL validation when debug-overrides is
+    // set; otherwise the system trust manager is used, which is only loaded when first needed
+    protected static X509TrustManager debugOverridesTrustManager = null;
+
+    // The configuration TrustKit was initialized with, which is also the policy set in the App's
+    // manifest; on Android N and later its pins are enforced by the OS
+    protected static TrustKitConfiguration manifestConfiguration = null;
 
     // Pinning validation can be disabled if debug-overrides is set
     protected static boolean shouldOverridePins = false;
@@ -31,15 +40,26 @@ public class TrustManagerBuilder {
     // The reporter that will send pinning failure reports
     protected static BackgroundReporter backgroundReporter = null;
 
-    public static void initializeBaselineTrustManager(@Nullable Set<Certificate> debugCaCerts,
-                                                      boolean debugOverridePins,
-                                                      @NonNull BackgroundReporter reporter)
+    // The pinning trust managers already created for each hostname; they are thread-safe so they
+    // can be shared by all the connections to the same server
+    private static final int TRUST_MANAGER_CACHE_SIZE = 32;
+    private static final LruCache<String, PinningTrustManager> pinningTrustManagerCache =
+            new LruCache<>(TRUST_MANAGER_CACHE_SIZE);
+
+    public static void initializeBaselineTrustManager(
+            @NonNull TrustKitConfiguration initialConfiguration,
+            @Nullable Set<Certificate> debugCaCerts,
+            boolean debugOverridePins,
+            @NonNull BackgroundReporter reporter)
             throws CertificateException, NoSuchAlgorithmException, KeyStoreException,
             IOException {
-        if (baselineTrustManager != null) {
+        if (isInitialized) {
             throw new IllegalStateException("TrustManagerBuilder has already been initialized");
         }
-        baselineTrustManager = SystemTrustManager.getInstance();
+        isInitialized = true;
+        manifestConfiguration = initialConfiguration;
+        debugOverridesTrustManager = null;
+        pinningTrustManagerCache.evictAll();
 
 
         if (Build.VERSION.SDK_INT < 17) {
@@ -50,20 +70,20 @@ public class TrustManagerBuilder {
         shouldOverridePins = debugOverridePins;
         if ((debugCaCerts != null) && (debugCaCerts.size() > 0) && (Build.VERSION.SDK_INT < 24)) {
             // Debug overrides is enabled and we are on a pre-N device; we need to do it manually
-            baselineTrustManager = DebugOverridesTrustManager.getInstance(debugCaCerts);
+            debugOverridesTrustManager = DebugOverridesTrustManager.getInstance(debugCaCerts);
         }
 
         backgroundReporter = reporter;
     }
 
     public static X509TrustManager getTrustManager(@NonNull String serverHostname) {
-        if (baselineTrustManager == null) {
+        if (!isInitialized) {
             throw new IllegalStateException("TrustManagerBuilder has not been initialized");
         }
         if (Build.VERSION.SDK_INT < 17) {
             // No pinning validation at all for API level before 17
             // Because X509TrustManagerExtensions is not available
-            return baselineTrustManager;
+            return getBaselineTrustManager();
         }
 
         // Get the pinning policy for this hostname
@@ -71,10 +91,75 @@ public class TrustManagerBuilder {
                 TrustKit.getInstance().getConfiguration().getPolicyForHostname(serverHostname);
         if ((serverConfig == null) || (shouldOverridePins)) {
             // Domain is NOT pinned or there is a debug override - only do baseline validation
-            return baselineTrustManager;
-        } else {
-            return new PinningTrustManager(serverHostname, serverConfig, baselineTrustManager);
+            return getBaselineTrustManager();
+        }
+
+        // Re-use the trust manager previously created for this hostname if it enforces the same
+        // policy
+        PinningTrustManager trustManager = pinningTrustManagerCache.get(serverHostname);
+        if ((trustManager == null) || (trustManager.getServerConfig() != serverConfig)) {
+            // On Android N and later the OS only enforces the pins of the manifest's policy; the
+            // policies that were replaced or added with TrustKit.setConfiguration() have to be
+            // enforced by the pinning trust manager
+            boolean isPinningEnforcedBySystem = (Build.VERSION.SDK_INT >= 24)
+                    && (manifestConfiguration.getPolicyForHostname(serverHostname) == serverConfig);
+            trustManager = new PinningTrustManager(serverHostname, serverConfig,
+                    getBaselineTrustManager(), isPinningEnforcedBySystem);
+            pinningTrustManagerCache.put(serverHostname, trustManager);
+        }
+        return trustManager;
+    }
+
+    /** Retrieve the trust manager used to perform the default SSL validation.
+     */
+    @NonNull
+    static X509TrustManager getBaselineTrustManager() {
+        if (debugOverridesTrustManager != null) {
+            return debugOverridesTrustManager;
+        }
+        return SystemTrustManager.getInstance();
+    }
+
+    /** Retrieve a trust manager that enforces the pinning policy of whichever server it is used to
+     * connect to, by retrieving the server's hostname from the SSL socket or engine.
+     */
+    @RequiresApi(api = 24)
+    public static X509TrustManager getMultiHostTrustManager() {
+        if (!isInitialized) {
+            throw new IllegalStateException("TrustManagerBuilder has not been initialized");
+        }
+        if (shouldOverridePins) {
+            // Debug overrides - only do baseline validation
+            return getBaselineTrustManager();
+        }
+        return MultiHostTrustManagerHolder.INSTANCE;
+    }
+
+    // Lazily creates the multi-host trust manager, which is stateless
+    @RequiresApi(api = 24)
+    private static class MultiHostTrustManagerHolder {
+        private static final MultiHostPinningTrustManager INSTANCE =
+                new MultiHostPinningTrustManager();
+    }
+
+    /** Retrieve the number of connections whose certificate chain was found in the cache of
+     * validated chains, skipping the pin validation.
+     */
+    public static long getValidatedChainCacheHitCount() {
+        if (Build.VERSION.SDK_INT < 17) {
+            return 0;
+        }
+        return PinningTrustManager.getValidatedChainCache().hitCount();
+    }
+
+    /** Retrieve the number of connections whose certificate chain had to be validated because it
+     * was not in the cache of validated chains.
+     */
+    public static long getValidatedChainCacheMissCount() {
+        if (Build.VERSION.SDK_INT < 17) {
+            return 0;
         }
+        return PinningTrustManager.getValidatedChainCache().missCount();
     }
 
     /** Retrieve the background reporter to be used for sending pinning validation reports.
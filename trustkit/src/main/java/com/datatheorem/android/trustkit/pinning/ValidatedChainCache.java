@@ -0,0 +1,133 @@
+package com.datatheorem.android.trustkit.pinning;
+
+import android.support.annotation.NonNull;
+import android.util.LruCache;
+
+import com.datatheorem.android.trustkit.config.DomainPinningPolicy;
+import com.datatheorem.android.trustkit.utils.Sha256Digest;
+
+import java.security.MessageDigest;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A bounded cache of the certificate chains that recently passed hostname, path and pinning
+ * validation, so that validation can be skipped when the same server chain is received again (for
+ * example when a session is resumed or a new connection is opened to the same server).
+ *
+ * An entry is specific to a hostname, a served certificate chain and a pinning policy, and it
+ * expires after the policy's validationCacheTtl, or earlier if the policy's pin-set or one of the
+ * certificates in the chain expires before that. Only successful validations are cached so that
+ * failures always get reported.
+ */
+class ValidatedChainCache {
+
+    static final int DEFAULT_MAX_SIZE = 32;
+
+    // Maps each validated chain to the time at which the entry expires
+    private final LruCache<Key, Long> cache;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    ValidatedChainCache(int maxSize) {
+        cache = new LruCache<>(maxSize);
+    }
+
+    /**
+     * Return true if the chain described by the supplied key was successfully validated recently.
+     */
+    boolean contains(@NonNull Key key) {
+        Long expirationTime = cache.get(key);
+        if ((expirationTime != null) && (System.currentTimeMillis() < expirationTime)) {
+            hitCount.incrementAndGet();
+            return true;
+        }
+        if (expirationTime != null) {
+            // The entry expired
+            cache.remove(key);
+        }
+        missCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Store a chain that was just successfully validated.
+     */
+    void put(@NonNull Key key, @NonNull X509Certificate[] servedChain) {
+        long expirationTime =
+                System.currentTimeMillis() + (key.policy.getValidationCacheTtl() * 1000L);
+
+        // Do not trust the chain for longer than the pin-set or any certificate is valid
+        if (key.policy.getExpirationDate() != null) {
+            expirationTime = Math.min(expirationTime, key.policy.getExpirationDate().getTime());
+        }
+        for (X509Certificate certificate : servedChain) {
+            expirationTime = Math.min(expirationTime, certificate.getNotAfter().getTime());
+        }
+        cache.put(key, expirationTime);
+    }
+
+    void clear() {
+        cache.evictAll();
+    }
+
+    long hitCount() {
+        return hitCount.get();
+    }
+
+    long missCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Identifies a served certificate chain validated for a given hostname and policy.
+     */
+    static final class Key {
+        @NonNull private final String hostname;
+        @NonNull private final String authType;
+        @NonNull private final DomainPinningPolicy policy;
+        @NonNull private final byte[] chainFingerprint;
+        private final int hashCode;
+
+        Key(@NonNull String hostname, @NonNull String authType,
+            @NonNull X509Certificate[] servedChain, @NonNull DomainPinningPolicy policy)
+                throws CertificateEncodingException {
+            this.hostname = hostname;
+            this.authType = authType;
+            this.policy = policy;
+
+            // Hash the whole chain instead of keeping references to the certificates
+            MessageDigest digest = Sha256Digest.get();
+            for (X509Certificate certificate : servedChain) {
+                digest.update(certificate.getEncoded());
+            }
+            chainFingerprint = digest.digest();
+
+            hashCode = 31 * Arrays.hashCode(chainFingerprint) + hostname.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            // Policies are compared by identity so a new configuration never matches old entries
+            return (policy == other.policy) && hostname.equals(other.hostname)
+                    && authType.equals(other.authType)
+                    && Arrays.equals(chainFingerprint, other.chainFingerprint);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -1,14 +1,18 @@
 package com.datatheorem.android.trustkit.reporting;
 
 
+import android.content.Context;
+import android.os.Build;
 import android.support.annotation.NonNull;
 import android.support.annotation.RequiresApi;
 import android.util.Base64;
 
 import com.datatheorem.android.trustkit.pinning.PinningValidationResult;
 import com.datatheorem.android.trustkit.config.DomainPinningPolicy;
+import com.datatheorem.android.trustkit.config.ReportingPolicy;
 import com.datatheorem.android.trustkit.utils.TrustKitLog;
 
+import java.io.File;
 import java.net.URL;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
@@ -20,16 +24,112 @@ import java.util.Set;
 
 public class BackgroundReporter {
 
+    private static final String RATE_LIMITER_FILENAME = "trustkit_rate_limiter";
+
     // App meta-data to be sent with the reports
     private final String appPackageName;
     private final String appVersion;
     private final String appVendorId;
 
+    // Persists the reports and uploads them in the background
+    private final ReportUploader reportUploader;
+
+    private final ReportingPolicy reportingPolicy;
+
+    // Where this device falls in [0, 1) for sampling reports; derived from the vendor ID so that
+    // the device is always either in or out of the sample
+    private final double samplingValue;
+
+    public BackgroundReporter(@NonNull Context context, @NonNull String appPackageName,
+                              @NonNull String appVersion, @NonNull String appVendorId) {
+        this(context, ReportingPolicy.DEFAULT, appPackageName, appVersion, appVendorId);
+    }
+
+    public BackgroundReporter(@NonNull Context context, @NonNull ReportingPolicy reportingPolicy,
+                              @NonNull String appPackageName, @NonNull String appVersion,
+                              @NonNull String appVendorId) {
+        this(ReportUploader.getInstance(context), reportingPolicy, appPackageName, appVersion,
+                appVendorId);
+        ReportRateLimiter.setStateFile(new File(context.getFilesDir(), RATE_LIMITER_FILENAME));
+        this.reportUploader.setReportingPolicy(reportingPolicy);
+    }
+
+    /**
+     * @deprecated Without a Context, pending reports are kept in the temporary directory and the
+     * rate-limiting state is not saved, unless TrustKit was already initialized; the reports are
+     * then uploaded with TrustKit's reporting policy. Use
+     * {@link #BackgroundReporter(Context, String, String, String)} instead.
+     */
+    @Deprecated
     public BackgroundReporter(@NonNull String appPackageName, @NonNull String appVersion,
                               @NonNull String appVendorId) {
+        this(ReportUploader.getInstance(), ReportingPolicy.DEFAULT, appPackageName, appVersion,
+                appVendorId);
+    }
+
+    private BackgroundReporter(@NonNull ReportUploader reportUploader,
+                               @NonNull ReportingPolicy reportingPolicy,
+                               @NonNull String appPackageName, @NonNull String appVersion,
+                               @NonNull String appVendorId) {
         this.appPackageName = appPackageName;
         this.appVersion = appVersion;
         this.appVendorId = appVendorId;
+        this.reportingPolicy = reportingPolicy;
+        this.samplingValue = getSamplingValue(appVendorId);
+        this.reportUploader = reportUploader;
+    }
+
+    /**
+     * Create the SSL context used for uploading reports, so that this is not done when the first
+     * report gets uploaded.
+     */
+    public static void prewarm() {
+        if (Build.VERSION.SDK_INT >= 16) {
+            BackgroundReporterTask.prewarm();
+        }
+    }
+
+    /**
+     * The number of reports waiting to be written to disk by the reporting thread.
+     */
+    public int getPendingReportCount() {
+        return reportUploader.getPendingReportCount();
+    }
+
+    /**
+     * The number of reports that were dropped because too many reports were waiting to be written
+     * to disk.
+     */
+    public long getDroppedReportCount() {
+        return reportUploader.getDroppedReportCount();
+    }
+
+    /**
+     * The number of HTTPS connections that were opened to upload reports.
+     */
+    public int getOpenedConnectionCount() {
+        if (Build.VERSION.SDK_INT < 16) {
+            return 0;
+        }
+        return BackgroundReporterTask.getOpenedConnectionCount();
+    }
+
+    /**
+     * The number of successful HTTPS uploads that reused a connection opened by a previous upload.
+     */
+    public int getReusedConnectionCount() {
+        if (Build.VERSION.SDK_INT < 16) {
+            return 0;
+        }
+        return BackgroundReporterTask.getReusedConnectionCount();
+    }
+
+    /**
+     * Map the supplied vendor ID to a value in [0, 1). String.hashCode() is specified by the Java
+     * language so this is stable across devices and restarts of the App.
+     */
+    static double getSamplingValue(@NonNull String appVendorId) {
+        return (appVendorId.hashCode() & 0x7fffffff) / (Integer.MAX_VALUE + 1.0);
     }
 
     private static String certificateToPem(X509Certificate certificate) {
@@ -42,10 +142,9 @@ public class BackgroundReporter {
         }
 
         // Create the PEM string
-        String certificateAsPem = "-----BEGIN CERTIFICATE-----\n";
-        certificateAsPem += Base64.encodeToString(certificateData, Base64.DEFAULT);
-        certificateAsPem += "-----END CERTIFICATE-----\n";
-        return certificateAsPem;
+        return "-----BEGIN CERTIFICATE-----\n"
+                + Base64.encodeToString(certificateData, Base64.DEFAULT)
+                + "-----END CERTIFICATE-----\n";
     }
 
     /**
@@ -53,7 +152,10 @@ public class BackgroundReporter {
      * hostname that triggered the failure.
      *
      * Reports are rate-limited to one identical (same host, error and certificate chain) report
-     * every 24 hours. Also and before Android N, only the default SSL validation is performed when
+     * every 24 hours, including across restarts of the App, and are only sent by the devices
+     * selected by the domain's reportSamplingRate. Reports are stored on disk until they could
+     * be uploaded, so they are not lost if the reporting server cannot be reached or the App gets
+     * killed. Also and before Android N, only the default SSL validation is performed when
      * connecting to the reporting server (ie. no pinning validation).
      */
     @RequiresApi(api = 16)
@@ -64,6 +166,25 @@ public class BackgroundReporter {
                                     @NonNull DomainPinningPolicy serverConfig,
                                     @NonNull PinningValidationResult validationResult) {
 
+        // Only the devices that are part of the sample send reports; this is checked first as it
+        // does not require looking at the certificates at all
+        Double reportSamplingRate = serverConfig.getReportSamplingRate();
+        if (reportSamplingRate == null) {
+            reportSamplingRate = reportingPolicy.getReportSamplingRate();
+        }
+        if (samplingValue >= reportSamplingRate) {
+            TrustKitLog.i("Report for " + serverHostname + " was not sent due to sampling");
+            return;
+        }
+
+        // If a similar report was sent recently, do not even generate the report; this is done
+        // before converting the certificates to PEM as this is most of the work
+        if (ReportRateLimiter.shouldRateLimit(serverConfig.getHostname(), serverHostname,
+                serverPort, validatedCertificateChain, validationResult)) {
+            TrustKitLog.i("Report for " + serverHostname + " was not sent due to rate-limiting");
+            return;
+        }
+
         TrustKitLog.i("Generating pin failure report for " + serverHostname);
 
         // Convert the certificates to PEM strings
@@ -84,24 +205,13 @@ public class BackgroundReporter {
                 validatedCertificateChainAsPem, new Date(System.currentTimeMillis()),
                 serverConfig.getPublicKeyPins(), validationResult);
 
-        // If a similar report hasn't been sent recently, send it now
-        if (!(ReportRateLimiter.shouldRateLimit(report))) {
-            sendReport(report, serverConfig.getReportUris());
-        } else {
-            TrustKitLog.i("Report for " + serverHostname + " was not sent due to rate-limiting");
-        }
+        sendReport(report, serverConfig.getReportUris(), serverConfig.getGzipReportUris());
     }
 
     @RequiresApi(api = 16)
     protected void sendReport(@NonNull PinningFailureReport report,
-                              @NonNull Set<URL> reportUriSet) {
-        // Prepare the AsyncTask's arguments
-        ArrayList<Object> taskParameters = new ArrayList<>();
-        taskParameters.add(report);
-        for (URL reportUri : reportUriSet) {
-            taskParameters.add(reportUri);
-        }
-        // Call the task
-        new BackgroundReporterTask().execute(taskParameters.toArray());
+                              @NonNull Set<URL> reportUriSet,
+                              @NonNull Set<URL> gzipReportUriSet) {
+        reportUploader.enqueue(report, reportUriSet, gzipReportUriSet);
     }
 }
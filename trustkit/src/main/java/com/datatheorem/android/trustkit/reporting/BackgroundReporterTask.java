@@ -1,6 +1,7 @@
 package com.datatheorem.android.trustkit.reporting;
 
-import android.os.AsyncTask;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.RequiresApi;
 import android.util.Base64;
 
@@ -9,11 +10,13 @@ import com.datatheorem.android.trustkit.utils.TrustKitLog;
 
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPOutputStream;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
@@ -21,66 +24,153 @@ import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 
 
-// This returns an obscure threading error on API level < 16
+/**
+ * Uploads a report to a report URI; this is done on the {@link ReportUploader}'s worker thread.
+ *
+ * Connections are not closed after an upload so that the platform's HTTP client can keep them
+ * alive and reuse them for the next reports sent to the same server, until
+ * {@link #closeIdleConnections()} gets called.
+ */
 @RequiresApi(api = 16)
-class BackgroundReporterTask extends AsyncTask<Object, Void, Integer> {
-
-    private static final SSLSocketFactory systemSocketFactory = getSystemSSLSocketFactory();
-
-    @Override
-    protected final Integer doInBackground(Object... params) {
-        Integer lastResponseCode = null;
-
-        // First parameter is the report
-        PinningFailureReport report = (PinningFailureReport) params[0];
-
-        // Remaining parameters are report URLs - send the report to each of them
-        for (int i=1; i<params.length; i++) {
-            URL reportUri = (URL) params[i];
-            HttpURLConnection connection = null;
-            try {
-                connection = (HttpURLConnection) reportUri.openConnection();
-                connection.setRequestMethod("POST");
-                connection.setRequestProperty("Content-Type", "application/json");
-                connection.setDoOutput(true);
-                connection.setChunkedStreamingMode(0);
-
-                // If basic authentication was specified in the URL, set it up on the connection
-                if (reportUri.getUserInfo() != null) {
-                    String basicAuth = "Basic " + new String(Base64.encode(reportUri.getUserInfo().getBytes(), Base64.DEFAULT));
-                    connection.setRequestProperty("Authorization", basicAuth);
-                }
+class BackgroundReporterTask {
 
-                if (connection instanceof HttpsURLConnection) {
-                    // HTTPS URL
-                    HttpsURLConnection httpsConnection = (HttpsURLConnection) connection;
-                    // Use the default system factory - this will avoid an infinite loop of report
-                    // uploads if the reporting server triggers SSL failures
-                    // This also means that no pinning validation will be done before Android N, but
-                    // for reports this is fine
-                    httpsConnection.setSSLSocketFactory(systemSocketFactory);
-                }
+    /**
+     * The body of an upload request, which is written directly to the connection's stream.
+     */
+    interface RequestBody {
+        void writeTo(@NonNull OutputStream stream) throws IOException;
+    }
+
+    /**
+     * POST the supplied report(s) to the report URI, compressed with gzip if requested.
+     *
+     * @return the HTTP response code returned by the server, or null if the upload failed.
+     */
+    @Nullable
+    static Integer uploadReport(@NonNull URL reportUri, @NonNull RequestBody requestBody,
+                                boolean shouldGzip) {
+        Integer responseCode = null;
+        HttpURLConnection connection = null;
+        ReportSocketFactory socketFactory = null;
+        try {
+            connection = (HttpURLConnection) reportUri.openConnection();
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/json");
+            if (shouldGzip) {
+                connection.setRequestProperty("Content-Encoding", "gzip");
+            }
+            connection.setDoOutput(true);
+            connection.setChunkedStreamingMode(0);
 
-                connection.connect();
+            // If basic authentication was specified in the URL, set it up on the connection
+            if (reportUri.getUserInfo() != null) {
+                String basicAuth = "Basic " + new String(Base64.encode(reportUri.getUserInfo().getBytes(), Base64.DEFAULT));
+                connection.setRequestProperty("Authorization", basicAuth);
+            }
 
-                final OutputStream stream = new BufferedOutputStream(connection.getOutputStream());
-                stream.write(report.toJson().toString().getBytes("UTF-8"));
-                stream.flush();
-                stream.close();
+            if (connection instanceof HttpsURLConnection) {
+                // HTTPS URL
+                HttpsURLConnection httpsConnection = (HttpsURLConnection) connection;
+                // Use the default system factory - this will avoid an infinite loop of report
+                // uploads if the reporting server triggers SSL failures
+                // This also means that no pinning validation will be done before Android N, but
+                // for reports this is fine
+                socketFactory = ReportSocketFactoryHolder.INSTANCE;
+                httpsConnection.setSSLSocketFactory(socketFactory);
+                socketFactory.onUploadStarted();
+            }
 
-                lastResponseCode = connection.getResponseCode();
-            } catch (IOException e) {
-                TrustKitLog.i("Background upload - task completed with error:" + e.getMessage());
-            } finally {
-                if (connection != null) {
-                    connection.disconnect();
+            connection.connect();
+
+            OutputStream stream = new BufferedOutputStream(connection.getOutputStream());
+            if (shouldGzip) {
+                stream = new GZIPOutputStream(stream);
+            }
+            requestBody.writeTo(stream);
+            stream.flush();
+            stream.close();
+
+            responseCode = connection.getResponseCode();
+            if (socketFactory != null) {
+                socketFactory.onUploadCompleted();
+            }
+
+            // Read the whole response so that the connection can be reused for the next upload
+            InputStream responseStream = (responseCode >= 400) ? connection.getErrorStream()
+                    : connection.getInputStream();
+            if (responseStream != null) {
+                byte[] buffer = new byte[1024];
+                while (responseStream.read(buffer) != -1) {
+                    // Discard the response
                 }
+                responseStream.close();
+            }
+            connection = null;
+        } catch (IOException e) {
+            TrustKitLog.i("Background upload - task completed with error:" + e.getMessage());
+        } finally {
+            if (connection != null) {
+                // Do not reuse a connection that failed
+                connection.disconnect();
             }
         }
-        return lastResponseCode;
+        return responseCode;
+    }
+
+    /**
+     * Close the connections that were kept alive after previous uploads. This must only be called
+     * from the {@link ReportUploader}'s worker thread.
+     */
+    static void closeIdleConnections() {
+        ReportSocketFactoryHolder.INSTANCE.closeSockets();
+    }
+
+    /**
+     * The number of HTTPS connections that were opened to upload reports. Connections to HTTP
+     * report URIs are not counted.
+     */
+    static int getOpenedConnectionCount() {
+        if (!isSocketFactoryCreated) {
+            // Do not load the system's CA store only to read the metrics
+            return 0;
+        }
+        return ReportSocketFactoryHolder.INSTANCE.getCreatedSocketCount();
+    }
+
+    /**
+     * The number of successful HTTPS uploads that reused a connection opened by a previous upload.
+     * Uploads to HTTP report URIs are not counted.
+     */
+    static int getReusedConnectionCount() {
+        if (!isSocketFactoryCreated) {
+            return 0;
+        }
+        return ReportSocketFactoryHolder.INSTANCE.getReusedConnectionCount();
+    }
+
+    /**
+     * Create the socket factory used for uploading reports, if it was not created yet. This
+     * loads the system's CA store, which otherwise happens when the first report gets uploaded.
+     */
+    static void prewarm() {
+        ReportSocketFactoryHolder.prewarm();
+    }
+
+    // Set once the socket factory below has been created
+    private static volatile boolean isSocketFactoryCreated = false;
+
+    // Lazily creates the socket factory, which requires loading the system trust manager
+    private static class ReportSocketFactoryHolder {
+        private static final ReportSocketFactory INSTANCE =
+                new ReportSocketFactory(getSystemSSLSocketFactory());
+
+        // Calling any static method initializes the holder class, which creates INSTANCE
+        static void prewarm() {
+        }
     }
 
     private static SSLSocketFactory getSystemSSLSocketFactory() {
+        long startTime = System.nanoTime();
         SSLContext context;
         try {
             context = SSLContext.getInstance("TLS");
@@ -96,6 +186,9 @@ class BackgroundReporterTask extends AsyncTask<Object, Void, Integer> {
         } catch (KeyManagementException e) {
             throw new IllegalStateException("Should never happen");
         }
+        TrustKitLog.i("Created the SSL context for uploading reports in "
+                + ((System.nanoTime() - startTime) / 1000000) + " ms");
+        isSocketFactoryCreated = true;
         return context.getSocketFactory();
     }
 }
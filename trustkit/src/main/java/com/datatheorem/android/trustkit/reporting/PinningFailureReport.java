@@ -2,6 +2,7 @@ package com.datatheorem.android.trustkit.reporting;
 
 import android.support.annotation.NonNull;
 import android.text.format.DateFormat;
+import android.util.JsonWriter;
 
 import com.datatheorem.android.trustkit.BuildConfig;
 import com.datatheorem.android.trustkit.pinning.PinningValidationResult;
@@ -11,6 +12,7 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.Date;
 import java.util.List;
@@ -62,6 +64,47 @@ class PinningFailureReport implements Serializable {
         this.validationResult = validationResult;
     }
 
+    /**
+     * Serialize the report directly to the supplied writer, without building the intermediate
+     * JSONObject and String that {@link #toJson()} requires; this is how reports get persisted
+     * and uploaded.
+     */
+    void writeJson(@NonNull JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("app-bundle-id").value(appBundleId);
+        writer.name("app-version").value(String.valueOf(appVersion));
+        writer.name("app-vendor-id").value(appVendorId);
+        writer.name("app-platform").value(APP_PLATFORM);
+        writer.name("trustkit-version").value(trustKitVersion);
+        writer.name("hostname").value(serverHostname);
+        writer.name("port").value(serverPort);
+        writer.name("noted-hostname").value(notedHostname);
+        writer.name("include-subdomains").value(includeSubdomains);
+        writer.name("enforce-pinning").value(enforcePinning);
+        writer.name("validation-result").value(validationResult.ordinal());
+        writer.name("date-time")
+                .value(DateFormat.format("yyyy-MM-dd'T'HH:mm:ssZ", dateTime).toString());
+
+        writer.name("validated-certificate-chain").beginArray();
+        for (String validatedCertificate : validatedCertificateChainAsPem) {
+            writer.value(validatedCertificate);
+        }
+        writer.endArray();
+
+        writer.name("served-certificate-chain").beginArray();
+        for (String servedCertificate : servedCertificateChainAsPem) {
+            writer.value(servedCertificate);
+        }
+        writer.endArray();
+
+        writer.name("known-pins").beginArray();
+        for (PublicKeyPin knownPin : knownPins) {
+            writer.value("pin-sha256=\"" + knownPin.toString() + "\"");
+        }
+        writer.endArray();
+        writer.endObject();
+    }
+
     JSONObject toJson() {
         JSONObject jsonReport = new JSONObject();
         try {
@@ -111,28 +154,4 @@ class PinningFailureReport implements Serializable {
             return toJson().toString();
         }
     }
-
-    @NonNull
-    String getNotedHostname() {
-        return notedHostname;
-    }
-
-    @NonNull
-    String getServerHostname() {
-        return serverHostname;
-    }
-
-    @NonNull
-    List<String> getValidatedCertificateChainAsPem() {
-        return validatedCertificateChainAsPem;
-    }
-
-    @NonNull
-    PinningValidationResult getValidationResult() {
-        return validationResult;
-    }
-
-    int getServerPort() {
-        return serverPort;
-    }
 }
@@ -0,0 +1,367 @@
+package com.datatheorem.android.trustkit.reporting;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.JsonWriter;
+
+import com.datatheorem.android.trustkit.utils.TrustKitLog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+
+
+/**
+ * A bounded queue of the reports waiting to be uploaded, persisted to a file so that pending
+ * reports are not lost if an upload fails or the App gets killed.
+ *
+ * Records are appended to the file, one per line, as the report URI, the encoding to use for the
+ * upload ("gzip" or "identity") and the report's JSON, separated by spaces. The file is compacted
+ * by rewriting the remaining records to a temporary file which then replaces the queue file,
+ * after records were removed. When the queue is full, the oldest records get dropped; they are
+ * left at the start of the file until more than half of the queue's capacity was dropped, so that
+ * adding to a full queue does not rewrite the whole file every time. Loading the file also drops
+ * them, as only the most recent records are kept.
+ *
+ * Reports are serialized straight into the file and only their position in the file is kept in
+ * memory; their JSON is then streamed from the file when uploading them.
+ *
+ * The file is only read when the queue is first accessed, so that this does not happen on the
+ * thread that created the queue.
+ */
+class ReportQueue {
+
+    static final int DEFAULT_MAX_RECORDS = 100;
+
+    private static final String GZIP_ENCODING = "gzip";
+    private static final String IDENTITY_ENCODING = "identity";
+
+    @NonNull private final File queueFile;
+    private final int maxRecords;
+
+    // The records in the queue, oldest first; loaded from the file when first needed
+    private LinkedList<Record> records = null;
+    private long queueFileLength = 0;
+
+    // The records that were dropped from the queue but are still at the start of the file
+    private int droppedRecordCount = 0;
+
+    ReportQueue(@NonNull File queueFile, int maxRecords) {
+        this.queueFile = queueFile;
+        this.maxRecords = maxRecords;
+    }
+
+    /**
+     * Add a report to be uploaded to the supplied report URI to the end of the queue, dropping the
+     * oldest record if the queue is full.
+     */
+    synchronized void add(@NonNull URL reportUri, boolean shouldGzip,
+                          @NonNull PinningFailureReport report) {
+        loadIfNeeded();
+        Record record = appendRecord(reportUri, shouldGzip, report);
+        if (record == null) {
+            return;
+        }
+        records.add(record);
+        if (records.size() > maxRecords) {
+            TrustKitLog.w("Report queue is full - dropping the oldest report");
+            records.removeFirst();
+            droppedRecordCount++;
+            if (droppedRecordCount > maxRecords / 2) {
+                compact();
+            }
+        }
+    }
+
+    /**
+     * Retrieve the records in the queue, oldest first, without removing them.
+     */
+    @NonNull
+    synchronized List<Record> peekAll() {
+        loadIfNeeded();
+        return new ArrayList<>(records);
+    }
+
+    /**
+     * Remove the supplied records from the queue, for example after they were uploaded.
+     */
+    synchronized void removeAll(@NonNull Collection<Record> recordsToRemove) {
+        loadIfNeeded();
+        if (records.removeAll(recordsToRemove)) {
+            compact();
+        }
+    }
+
+    synchronized int size() {
+        loadIfNeeded();
+        return records.size();
+    }
+
+    /**
+     * Copy the JSON of the supplied record's report from the queue file to the stream.
+     */
+    synchronized void writeReportTo(@NonNull Record record, @NonNull OutputStream stream)
+            throws IOException {
+        RandomAccessFile file = new RandomAccessFile(queueFile, "r");
+        try {
+            copy(file, record.reportOffset, record.reportLength, stream);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Serialize the report at the end of the queue file.
+     *
+     * @return the corresponding record, or null if the report could not be persisted.
+     */
+    @Nullable
+    private Record appendRecord(@NonNull URL reportUri, boolean shouldGzip,
+                                @NonNull PinningFailureReport report) {
+        byte[] recordHeader = buildRecordHeader(reportUri, shouldGzip);
+        long reportOffset = queueFileLength + recordHeader.length;
+        OutputStream stream = null;
+        try {
+            stream = new BufferedOutputStream(new FileOutputStream(queueFile, true));
+            stream.write(recordHeader);
+            // The JSON generated by JsonWriter never contains line breaks
+            JsonWriter writer = new JsonWriter(new OutputStreamWriter(stream, "UTF-8"));
+            report.writeJson(writer);
+            writer.flush();
+            stream.write('\n');
+            stream.close();
+            stream = null;
+
+            long newQueueFileLength = queueFile.length();
+            Record record = new Record(reportUri, shouldGzip, reportOffset,
+                    (int) (newQueueFileLength - 1 - reportOffset));
+            queueFileLength = newQueueFileLength;
+            return record;
+        } catch (IOException e) {
+            TrustKitLog.w("Could not persist report: " + e.getMessage());
+            closeQuietly(stream);
+            // Do not leave a partial record behind, as new records would get appended to it
+            truncateQueueFile(queueFileLength);
+            return null;
+        }
+    }
+
+    private void loadIfNeeded() {
+        if (records != null) {
+            return;
+        }
+        records = new LinkedList<>();
+        queueFileLength = 0;
+        if (!queueFile.exists()) {
+            return;
+        }
+
+        boolean shouldCompact = false;
+        InputStream stream = null;
+        try {
+            stream = new BufferedInputStream(new FileInputStream(queueFile));
+            // Only the report URI and the encoding are read; the report itself stays in the file
+            ByteArrayOutputStream recordHeader = new ByteArrayOutputStream();
+            int separatorCount = 0;
+            long reportOffset = 0;
+            int lastByte = -1;
+            long position = 0;
+            int currentByte;
+            while ((currentByte = stream.read()) != -1) {
+                position++;
+                if (currentByte == '\n') {
+                    Record record = null;
+                    if ((separatorCount == 2) && (lastByte == '}')) {
+                        record = parseRecord(recordHeader.toString("UTF-8"), reportOffset,
+                                (int) (position - 1 - reportOffset));
+                    }
+                    if (record != null) {
+                        records.add(record);
+                    } else {
+                        shouldCompact = true;
+                    }
+                    recordHeader.reset();
+                    separatorCount = 0;
+                    lastByte = -1;
+                    continue;
+                }
+
+                if (separatorCount < 2) {
+                    if (currentByte == ' ') {
+                        separatorCount++;
+                        reportOffset = position;
+                    }
+                    if (separatorCount < 2) {
+                        recordHeader.write(currentByte);
+                    }
+                }
+                lastByte = currentByte;
+            }
+
+            if (lastByte != -1) {
+                // Truncated record, for example if the App was killed while writing it
+                shouldCompact = true;
+            }
+        } catch (IOException e) {
+            TrustKitLog.w("Could not read pending reports: " + e.getMessage());
+        } finally {
+            closeQuietly(stream);
+        }
+
+        // New records get appended after whatever was read
+        queueFileLength = queueFile.length();
+
+        // Only keep the most recent records if the limit was lowered
+        while (records.size() > maxRecords) {
+            records.removeFirst();
+            shouldCompact = true;
+        }
+        if (shouldCompact) {
+            // Make sure new records do not get appended to a truncated line
+            compact();
+        }
+    }
+
+    /**
+     * Rewrite the whole file with the records currently in the queue.
+     */
+    private void compact() {
+        File tempFile = new File(queueFile.getPath() + ".tmp");
+        RandomAccessFile source = null;
+        OutputStream stream = null;
+        try {
+            source = new RandomAccessFile(queueFile, "r");
+            stream = new BufferedOutputStream(new FileOutputStream(tempFile));
+            long[] newReportOffsets = new long[records.size()];
+            long position = 0;
+            int i = 0;
+            for (Record record : records) {
+                byte[] recordHeader = buildRecordHeader(record.reportUri, record.shouldGzip);
+                stream.write(recordHeader);
+                copy(source, record.reportOffset, record.reportLength, stream);
+                stream.write('\n');
+                newReportOffsets[i++] = position + recordHeader.length;
+                position += recordHeader.length + record.reportLength + 1;
+            }
+            stream.close();
+            stream = null;
+            source.close();
+            source = null;
+            if (!tempFile.renameTo(queueFile)) {
+                throw new IOException("Could not rename " + tempFile);
+            }
+
+            // The records now point to the new file
+            i = 0;
+            for (Record record : records) {
+                record.reportOffset = newReportOffsets[i++];
+            }
+            queueFileLength = position;
+            droppedRecordCount = 0;
+        } catch (IOException e) {
+            TrustKitLog.w("Could not compact the report queue: " + e.getMessage());
+        } finally {
+            closeQuietly(stream);
+            closeQuietly(source);
+        }
+    }
+
+    private void truncateQueueFile(long length) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(queueFile, "rw");
+            file.setLength(length);
+        } catch (IOException e) {
+            TrustKitLog.w("Could not truncate the report queue: " + e.getMessage());
+        } finally {
+            closeQuietly(file);
+        }
+    }
+
+    @NonNull
+    private static byte[] buildRecordHeader(@NonNull URL reportUri, boolean shouldGzip) {
+        String recordHeader = reportUri.toString() + " "
+                + (shouldGzip ? GZIP_ENCODING : IDENTITY_ENCODING) + " ";
+        try {
+            return recordHeader.getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException("Should never happen");
+        }
+    }
+
+    @Nullable
+    private static Record parseRecord(@NonNull String recordHeader, long reportOffset,
+                                      int reportLength) {
+        int uriEndIndex = recordHeader.indexOf(' ');
+        if (uriEndIndex == -1) {
+            return null;
+        }
+        String encoding = recordHeader.substring(uriEndIndex + 1);
+        if (!encoding.equals(GZIP_ENCODING) && !encoding.equals(IDENTITY_ENCODING)) {
+            return null;
+        }
+        try {
+            return new Record(new URL(recordHeader.substring(0, uriEndIndex)),
+                    encoding.equals(GZIP_ENCODING), reportOffset, reportLength);
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    private static void copy(@NonNull RandomAccessFile source, long offset, int length,
+                             @NonNull OutputStream destination) throws IOException {
+        byte[] buffer = new byte[Math.min(length, 8192)];
+        source.seek(offset);
+        int remaining = length;
+        while (remaining > 0) {
+            int readCount = source.read(buffer, 0, Math.min(remaining, buffer.length));
+            if (readCount == -1) {
+                throw new IOException("Unexpected end of the report queue");
+            }
+            destination.write(buffer, 0, readCount);
+            remaining -= readCount;
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * A report to be uploaded to a specific report URI, whose JSON is stored in the queue file.
+     */
+    static final class Record {
+        @NonNull final URL reportUri;
+        final boolean shouldGzip;
+        // Updated when the queue file gets compacted
+        long reportOffset;
+        final int reportLength;
+
+        Record(@NonNull URL reportUri, boolean shouldGzip, long reportOffset, int reportLength) {
+            this.reportUri = reportUri;
+            this.shouldGzip = shouldGzip;
+            this.reportOffset = reportOffset;
+            this.reportLength = reportLength;
+        }
+    }
+}
@@ -2,42 +2,244 @@ package com.datatheorem.android.trustkit.reporting;
 
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.LruCache;
 
+import com.datatheorem.android.trustkit.pinning.PinningValidationResult;
+import com.datatheorem.android.trustkit.utils.Sha256Digest;
+import com.datatheorem.android.trustkit.utils.TrustKitLog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-// Very basic implementation to rate-limit identical reports to once a day
+/**
+ * Rate-limits identical reports to once a day.
+ *
+ * Each report is identified by a 128-bit hash of the noted hostname, the server's hostname and
+ * port, the validated certificate chain and the validation result; the time at which the
+ * rate-limit expires is then stored in a bounded LRU cache, so that memory usage stays the same
+ * regardless of how many different reports get generated. The cache does its own locking, and
+ * only for looking up and storing an entry; the hash is computed without holding any lock.
+ *
+ * The cache is saved to a binary file so that reports are still rate-limited after the App was
+ * restarted; the file is only read when the first report gets checked. It contains a version
+ * number, the number of entries and then each entry's hash and expiration time, least recently
+ * used first.
+ */
 class ReportRateLimiter {
 
-    private static final long MAX_SECONDS_BETWEEN_CACHE_RESET = 3600*24;
-    private static final Set<List<Object>> reportsCache = new HashSet<>();
-    protected static Date lastReportsCacheResetDate = new Date();
-
-    synchronized static boolean shouldRateLimit(@NonNull final PinningFailureReport report) {
-        // Reset the cache if it was created more than 24 hours ago
-        Date currentDate = new Date();
-        long secondsSinceLastReset =
-                (currentDate.getTime() / 1000) - (lastReportsCacheResetDate.getTime() / 1000);
-        if (secondsSinceLastReset > MAX_SECONDS_BETWEEN_CACHE_RESET) {
-            reportsCache.clear();
-            lastReportsCacheResetDate = currentDate;
-        }
-
-        // Check to see if an identical report is already in the cache
-        List<Object> cacheEntry = new ArrayList<>();
-        cacheEntry.add(report.getNotedHostname());
-        cacheEntry.add(report.getServerHostname());
-        cacheEntry.add(report.getServerPort());
-        cacheEntry.add(report.getValidatedCertificateChainAsPem());
-        cacheEntry.add(report.getValidationResult());
-
-        boolean shouldRateLimitReport = reportsCache.contains(cacheEntry);
-        if (!shouldRateLimitReport){
-            reportsCache.add(cacheEntry);
-        }
-        return shouldRateLimitReport;
+    private static final long RATE_LIMIT_DURATION_MILLIS = 3600*24*1000L;
+    private static final int MAX_CACHE_SIZE = 128;
+    private static final int STATE_FILE_VERSION = 1;
+
+    // Maps each recent report to the time at which it can be sent again
+    protected static final LruCache<ReportKey, Long> reportsCache = new LruCache<>(MAX_CACHE_SIZE);
+
+    private static final Object stateFileLock = new Object();
+    @Nullable private static File stateFile = null;
+    private static volatile boolean isStateLoaded = true;
+    private static final AtomicBoolean hasStateChanged = new AtomicBoolean(false);
+
+    /**
+     * Set the file where the rate-limiting state is saved; its content will be loaded when the
+     * next report gets checked.
+     */
+    static void setStateFile(@NonNull File file) {
+        synchronized (stateFileLock) {
+            stateFile = file;
+            isStateLoaded = false;
+        }
+    }
+
+    /**
+     * Check whether an identical report was generated recently, before the report actually gets
+     * built.
+     */
+    static boolean shouldRateLimit(@NonNull String notedHostname, @NonNull String serverHostname,
+                                   int serverPort,
+                                   @NonNull List<? extends Certificate> validatedCertificateChain,
+                                   @NonNull PinningValidationResult validationResult) {
+        ReportKey reportKey = new ReportKey(notedHostname, serverHostname, serverPort,
+                validatedCertificateChain, validationResult);
+        loadStateIfNeeded();
+        long currentTime = System.currentTimeMillis();
+
+        // Only the thread that replaces a missing or expired entry gets to send the report
+        Long previousExpirationTime =
+                reportsCache.put(reportKey, currentTime + RATE_LIMIT_DURATION_MILLIS);
+        if ((previousExpirationTime != null) && (currentTime < previousExpirationTime)) {
+            // An identical report was sent recently; keep its original expiration time
+            reportsCache.put(reportKey, previousExpirationTime);
+            return true;
+        }
+        hasStateChanged.set(true);
+        return false;
+    }
+
+    /**
+     * Write the rate-limiting state to the state file if reports were allowed since it was last
+     * saved. This does I/O and should be called from a background thread.
+     */
+    static void saveStateIfNeeded() {
+        synchronized (stateFileLock) {
+            if ((stateFile == null) || !hasStateChanged.getAndSet(false)) {
+                return;
+            }
+            long currentTime = System.currentTimeMillis();
+            Map<ReportKey, Long> entries = reportsCache.snapshot();
+            File tempFile = new File(stateFile.getPath() + ".tmp");
+            DataOutputStream stream = null;
+            try {
+                stream = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(tempFile)));
+                List<Map.Entry<ReportKey, Long>> validEntries = new ArrayList<>();
+                for (Map.Entry<ReportKey, Long> entry : entries.entrySet()) {
+                    if (entry.getValue() > currentTime) {
+                        validEntries.add(entry);
+                    }
+                }
+                stream.writeInt(STATE_FILE_VERSION);
+                stream.writeInt(validEntries.size());
+                for (Map.Entry<ReportKey, Long> entry : validEntries) {
+                    stream.writeLong(entry.getKey().hashHigh);
+                    stream.writeLong(entry.getKey().hashLow);
+                    stream.writeLong(entry.getValue());
+                }
+                stream.close();
+                stream = null;
+                if (!tempFile.renameTo(stateFile)) {
+                    throw new IOException("Could not rename " + tempFile);
+                }
+            } catch (IOException e) {
+                TrustKitLog.w("Could not save the report rate-limiting state: " + e.getMessage());
+            } finally {
+                closeQuietly(stream);
+            }
+        }
+    }
+
+    private static void loadStateIfNeeded() {
+        if (isStateLoaded) {
+            return;
+        }
+        synchronized (stateFileLock) {
+            if (isStateLoaded) {
+                return;
+            }
+            isStateLoaded = true;
+            if ((stateFile == null) || !stateFile.exists()) {
+                return;
+            }
+
+            long currentTime = System.currentTimeMillis();
+            DataInputStream stream = null;
+            try {
+                stream = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(stateFile)));
+                if (stream.readInt() != STATE_FILE_VERSION) {
+                    return;
+                }
+                int entryCount = stream.readInt();
+                for (int i = 0; i < entryCount; i++) {
+                    ReportKey reportKey = new ReportKey(stream.readLong(), stream.readLong());
+                    long expirationTime = stream.readLong();
+                    // Do not overwrite reports that were checked before the state got loaded
+                    if ((expirationTime > currentTime) && (reportsCache.get(reportKey) == null)) {
+                        reportsCache.put(reportKey, expirationTime);
+                    }
+                }
+            } catch (IOException e) {
+                // Keep the entries that could be read
+                TrustKitLog.w("Could not load the report rate-limiting state: " + e.getMessage());
+            } finally {
+                closeQuietly(stream);
+            }
+        }
+    }
+
+    private static void closeQuietly(@Nullable Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Identifies a report by a 128-bit hash of the fields used for rate-limiting.
+     */
+    static final class ReportKey {
+        private final long hashHigh;
+        private final long hashLow;
+
+        private ReportKey(long hashHigh, long hashLow) {
+            this.hashHigh = hashHigh;
+            this.hashLow = hashLow;
+        }
+
+        ReportKey(@NonNull String notedHostname, @NonNull String serverHostname, int serverPort,
+                  @NonNull List<? extends Certificate> validatedCertificateChain,
+                  @NonNull PinningValidationResult validationResult) {
+            MessageDigest digest = Sha256Digest.get();
+            try {
+                // Hostnames cannot contain a null character so it can be used as a separator
+                digest.update(notedHostname.getBytes("UTF-8"));
+                digest.update((byte) 0);
+                digest.update(serverHostname.getBytes("UTF-8"));
+                digest.update((byte) 0);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException("Should never happen");
+            }
+            digest.update(ByteBuffer.allocate(8).putInt(serverPort)
+                    .putInt(validationResult.ordinal()).array());
+
+            // DER encodings are self-delimiting so they can be hashed one after the other
+            for (Certificate certificate : validatedCertificateChain) {
+                try {
+                    digest.update(certificate.getEncoded());
+                } catch (CertificateEncodingException e) {
+                    throw new IllegalStateException("Should never happen - certificate was "
+                            + "previously parsed by the system");
+                }
+            }
+
+            ByteBuffer hash = ByteBuffer.wrap(digest.digest());
+            hashHigh = hash.getLong();
+            hashLow = hash.getLong();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ReportKey)) {
+                return false;
+            }
+            ReportKey other = (ReportKey) o;
+            return (hashHigh == other.hashHigh) && (hashLow == other.hashLow);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (hashLow ^ (hashLow >>> 32));
+        }
     }
 }
@@ -0,0 +1,149 @@
+package com.datatheorem.android.trustkit.reporting;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLSocketFactory;
+
+
+/**
+ * The socket factory used for uploading reports, which keeps track of the sockets it created.
+ *
+ * The connections to the report servers are kept alive and reused across uploads by the
+ * platform's HTTP client; this factory allows counting how many connections had to be opened or
+ * were reused, and closing the idle connections after a while instead of leaving them to the HTTP
+ * client.
+ */
+class ReportSocketFactory extends SSLSocketFactory {
+
+    @NonNull private final SSLSocketFactory delegate;
+
+    // Weak references so that the sockets discarded by the HTTP client can be garbage collected
+    @NonNull private final Set<Socket> sockets =
+            Collections.newSetFromMap(new WeakHashMap<Socket, Boolean>());
+    @NonNull private final AtomicInteger createdSocketCount = new AtomicInteger();
+    @NonNull private final AtomicInteger reusedConnectionCount = new AtomicInteger();
+
+    // Whether the upload in progress on the current thread created a socket; the HTTP client
+    // creates its sockets on the thread doing the upload
+    @NonNull private final ThreadLocal<Boolean> didUploadCreateSocket = new ThreadLocal<>();
+
+    ReportSocketFactory(@NonNull SSLSocketFactory delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * The number of sockets created by this factory, ie. the number of connections that were
+     * opened to upload reports.
+     */
+    int getCreatedSocketCount() {
+        return createdSocketCount.get();
+    }
+
+    /**
+     * The number of successful uploads for which the HTTP client did not create a socket, ie. that
+     * reused a connection opened by a previous upload.
+     */
+    int getReusedConnectionCount() {
+        return reusedConnectionCount.get();
+    }
+
+    /**
+     * Must be called on the uploading thread before a report gets uploaded with this factory.
+     */
+    void onUploadStarted() {
+        didUploadCreateSocket.set(false);
+    }
+
+    /**
+     * Must be called on the uploading thread once the server responded to the upload.
+     */
+    void onUploadCompleted() {
+        if (!Boolean.TRUE.equals(didUploadCreateSocket.get())) {
+            reusedConnectionCount.incrementAndGet();
+        }
+        didUploadCreateSocket.remove();
+    }
+
+    /**
+     * Close all the sockets created by this factory; the HTTP client will then discard the
+     * corresponding connections instead of reusing them.
+     *
+     * This must only be called when no upload is in progress.
+     */
+    void closeSockets() {
+        List<Socket> socketsToClose;
+        synchronized (sockets) {
+            socketsToClose = new ArrayList<>(sockets);
+            sockets.clear();
+        }
+        for (Socket socket : socketsToClose) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @NonNull
+    private Socket track(@NonNull Socket socket) {
+        createdSocketCount.incrementAndGet();
+        didUploadCreateSocket.set(true);
+        synchronized (sockets) {
+            sockets.add(socket);
+        }
+        return socket;
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return delegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return delegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        return track(delegate.createSocket());
+    }
+
+    @Override
+    public Socket createSocket(Socket socket, String host, int port, boolean autoClose)
+            throws IOException {
+        return track(delegate.createSocket(socket, host, port, autoClose));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return track(delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+            throws IOException {
+        return track(delegate.createSocket(host, port, localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return track(delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+                               int localPort) throws IOException {
+        return track(delegate.createSocket(address, port, localAddress, localPort));
+    }
+}
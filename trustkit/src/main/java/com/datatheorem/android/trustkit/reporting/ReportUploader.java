@@ -0,0 +1,327 @@
+package com.datatheorem.android.trustkit.reporting;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.RequiresApi;
+
+import com.datatheorem.android.trustkit.config.ReportingPolicy;
+import com.datatheorem.android.trustkit.utils.TrustKitLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Uploads the reports stored in a {@link ReportQueue} from a single background thread, which is
+ * dedicated to reporting so that slow report servers never delay the rest of the App.
+ *
+ * Reports are first added to the queue, which is then drained by the worker thread after the
+ * configured flush interval. Pending reports are grouped by report URI and encoding, and sent in
+ * batches of up to the configured batch size; when batching is enabled, each request contains a
+ * JSON array of reports instead of a single report.
+ *
+ * The connections to the report servers are kept alive between uploads, and closed once no
+ * reports were uploaded for a minute.
+ *
+ * If the upload to a report URI fails (no response or a server error), the corresponding reports
+ * stay in the queue and the worker tries again later, doubling the delay after each consecutive
+ * failure. The reports that were left in the queue by a previous run of the App are uploaded as
+ * soon as the uploader gets created.
+ */
+@RequiresApi(api = 16)
+class ReportUploader {
+
+    private static final String QUEUE_FILENAME = "trustkit_reports";
+    private static final long INITIAL_RETRY_DELAY_SECONDS = 30;
+    private static final long MAX_RETRY_DELAY_SECONDS = 3600;
+    // How long to keep the connections to the report servers alive after the last upload
+    private static final long CONNECTION_IDLE_TIMEOUT_SECONDS = 60;
+    static final int DEFAULT_MAX_PENDING_REPORTS = 64;
+
+    private static ReportUploader instance = null;
+    private static ReportUploader temporaryInstance = null;
+
+    @NonNull private final ReportQueue queue;
+    @NonNull private final ScheduledExecutorService executor;
+
+    @NonNull private volatile ReportingPolicy reportingPolicy = ReportingPolicy.DEFAULT;
+
+    // The reports handed off by the callers and not yet written to the queue, oldest first
+    @NonNull private final ArrayDeque<PendingReport> pendingReports = new ArrayDeque<>();
+    private final int maxPendingReports;
+    @NonNull private final AtomicBoolean isPersistScheduled = new AtomicBoolean(false);
+    @NonNull private final AtomicLong droppedReportCount = new AtomicLong();
+
+    // Only accessed from the worker thread
+    private long retryDelaySeconds = 0;
+    private boolean isDrainScheduled = false;
+    @Nullable private ScheduledFuture<?> closeIdleConnectionsFuture = null;
+
+    ReportUploader(@NonNull ReportQueue queue) {
+        this(queue, DEFAULT_MAX_PENDING_REPORTS);
+    }
+
+    ReportUploader(@NonNull ReportQueue queue, int maxPendingReports) {
+        this.queue = queue;
+        this.maxPendingReports = maxPendingReports;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable runnable) {
+                Thread thread = new Thread(runnable, "TrustKit-Reporter");
+                // Do not prevent the App from exiting
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        // Upload the reports left over by a previous run of the App
+        isDrainScheduled = true;
+        drainLater(0);
+    }
+
+    /**
+     * Retrieve the uploader for the App, whose reports are persisted in the App's files directory.
+     */
+    @NonNull
+    synchronized static ReportUploader getInstance(@NonNull Context context) {
+        if (instance == null) {
+            File queueFile = new File(context.getFilesDir(), QUEUE_FILENAME);
+            instance = new ReportUploader(new ReportQueue(queueFile,
+                    ReportQueue.DEFAULT_MAX_RECORDS));
+        }
+        return instance;
+    }
+
+    /**
+     * Retrieve the uploader for the App if it was already created, or else an uploader whose
+     * reports are persisted in the temporary directory, for callers that do not have a Context.
+     */
+    @NonNull
+    synchronized static ReportUploader getInstance() {
+        if (instance != null) {
+            return instance;
+        }
+        if (temporaryInstance == null) {
+            File queueFile = new File(System.getProperty("java.io.tmpdir"), QUEUE_FILENAME);
+            temporaryInstance = new ReportUploader(new ReportQueue(queueFile,
+                    ReportQueue.DEFAULT_MAX_RECORDS));
+        }
+        return temporaryInstance;
+    }
+
+    /**
+     * Queue the report for each of the report URIs and upload it in the background, compressed
+     * with gzip for the report URIs that are in gzipReportUris. The report is serialized into the
+     * queue on the worker thread so that the caller is never blocked.
+     *
+     * Until then, the report is kept in a bounded in-memory buffer; if the worker falls behind and
+     * the buffer is full, the oldest report in the buffer gets dropped.
+     */
+    void enqueue(@NonNull PinningFailureReport report, @NonNull Set<URL> reportUris,
+                 @NonNull Set<URL> gzipReportUris) {
+        synchronized (pendingReports) {
+            if (pendingReports.size() >= maxPendingReports) {
+                pendingReports.removeFirst();
+                droppedReportCount.incrementAndGet();
+                TrustKitLog.w("Too many pending reports - dropping the oldest report");
+            }
+            pendingReports.addLast(new PendingReport(report, reportUris, gzipReportUris));
+        }
+
+        // Only one task for writing the pending reports is in the executor's queue at any time
+        if (isPersistScheduled.compareAndSet(false, true)) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    isPersistScheduled.set(false);
+                    persistPendingReports();
+                }
+            });
+        }
+    }
+
+    /**
+     * The number of reports waiting to be written to the queue by the worker thread.
+     */
+    int getPendingReportCount() {
+        synchronized (pendingReports) {
+            return pendingReports.size();
+        }
+    }
+
+    /**
+     * The number of reports that were dropped because too many reports were pending.
+     */
+    long getDroppedReportCount() {
+        return droppedReportCount.get();
+    }
+
+    private void persistPendingReports() {
+        PendingReport pendingReport;
+        while (true) {
+            synchronized (pendingReports) {
+                pendingReport = pendingReports.pollFirst();
+            }
+            if (pendingReport == null) {
+                break;
+            }
+            for (URL reportUri : pendingReport.reportUris) {
+                queue.add(reportUri, pendingReport.gzipReportUris.contains(reportUri),
+                        pendingReport.report);
+            }
+        }
+
+        // Also persist the fact that the reports were sent, so they do not get sent again if the
+        // App is restarted
+        ReportRateLimiter.saveStateIfNeeded();
+        if (!isDrainScheduled) {
+            // Otherwise the new reports will be uploaded by the drain already scheduled
+            isDrainScheduled = true;
+            drainLater(reportingPolicy.getReportFlushInterval());
+        }
+    }
+
+    void setReportingPolicy(@NonNull ReportingPolicy reportingPolicy) {
+        this.reportingPolicy = reportingPolicy;
+    }
+
+    @NonNull
+    ReportQueue getQueue() {
+        return queue;
+    }
+
+    private void drainLater(long delaySeconds) {
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                isDrainScheduled = false;
+                drain();
+            }
+        }, delaySeconds, TimeUnit.SECONDS);
+    }
+
+    private void closeIdleConnectionsLater() {
+        closeIdleConnectionsFuture = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                closeIdleConnectionsFuture = null;
+                BackgroundReporterTask.closeIdleConnections();
+            }
+        }, CONNECTION_IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Try to upload all the reports in the queue, and schedule a new attempt if some uploads
+     * failed.
+     */
+    private void drain() {
+        if (closeIdleConnectionsFuture != null) {
+            // The connections kept alive will be reused for the uploads
+            closeIdleConnectionsFuture.cancel(false);
+            closeIdleConnectionsFuture = null;
+        }
+
+        // Group the reports by report URI and encoding, oldest first
+        Map<List<Object>, List<ReportQueue.Record>> recordsByRequest = new LinkedHashMap<>();
+        for (ReportQueue.Record record : queue.peekAll()) {
+            List<Object> requestKey = Arrays.<Object>asList(record.reportUri, record.shouldGzip);
+            List<ReportQueue.Record> records = recordsByRequest.get(requestKey);
+            if (records == null) {
+                records = new ArrayList<>();
+                recordsByRequest.put(requestKey, records);
+            }
+            records.add(record);
+        }
+
+        int batchSize = reportingPolicy.getReportBatchSize();
+        List<ReportQueue.Record> uploadedRecords = new ArrayList<>();
+        boolean didUploadFail = false;
+        for (List<ReportQueue.Record> records : recordsByRequest.values()) {
+            for (int i = 0; i < records.size(); i += batchSize) {
+                List<ReportQueue.Record> batch =
+                        records.subList(i, Math.min(i + batchSize, records.size()));
+                Integer responseCode = BackgroundReporterTask.uploadReport(batch.get(0).reportUri,
+                        buildPayload(queue, batch, batchSize > 1), batch.get(0).shouldGzip);
+                if ((responseCode == null) || (responseCode >= 500)) {
+                    // Do not try again a server that just failed
+                    didUploadFail = true;
+                    break;
+                }
+                // Also drop reports rejected by the server as sending them again would not help
+                uploadedRecords.addAll(batch);
+            }
+        }
+        // Remove all the records that were processed at once, to only compact the queue once
+        queue.removeAll(uploadedRecords);
+        closeIdleConnectionsLater();
+
+        if (!didUploadFail) {
+            retryDelaySeconds = 0;
+        } else {
+            retryDelaySeconds = (retryDelaySeconds == 0) ? INITIAL_RETRY_DELAY_SECONDS
+                    : Math.min(retryDelaySeconds * 2, MAX_RETRY_DELAY_SECONDS);
+            TrustKitLog.i("Report upload failed - retrying in " + retryDelaySeconds + " seconds");
+            isDrainScheduled = true;
+            drainLater(retryDelaySeconds);
+        }
+    }
+
+    /**
+     * Build the body of a request containing the supplied reports, as a JSON array if requested
+     * or as a single JSON object otherwise. The reports are streamed from the queue file when the
+     * request gets sent.
+     */
+    @NonNull
+    static BackgroundReporterTask.RequestBody buildPayload(
+            @NonNull final ReportQueue queue, @NonNull final List<ReportQueue.Record> records,
+            final boolean asJsonArray) {
+        return new BackgroundReporterTask.RequestBody() {
+            @Override
+            public void writeTo(@NonNull OutputStream stream) throws IOException {
+                if (!asJsonArray) {
+                    queue.writeReportTo(records.get(0), stream);
+                    return;
+                }
+                // The reports are already serialized so they can be concatenated directly
+                stream.write('[');
+                for (int i = 0; i < records.size(); i++) {
+                    if (i > 0) {
+                        stream.write(',');
+                    }
+                    queue.writeReportTo(records.get(i), stream);
+                }
+                stream.write(']');
+            }
+        };
+    }
+
+    private static final class PendingReport {
+        @NonNull final PinningFailureReport report;
+        @NonNull final Set<URL> reportUris;
+        @NonNull final Set<URL> gzipReportUris;
+
+        PendingReport(@NonNull PinningFailureReport report, @NonNull Set<URL> reportUris,
+                      @NonNull Set<URL> gzipReportUris) {
+            this.report = report;
+            this.reportUris = reportUris;
+            this.gzipReportUris = gzipReportUris;
+        }
+    }
+}
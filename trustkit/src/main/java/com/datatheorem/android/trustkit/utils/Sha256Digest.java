@@ -0,0 +1,49 @@
+package com.datatheorem.android.trustkit.utils;
+
+
+import android.support.annotation.NonNull;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Provides SHA-256 {@code MessageDigest} instances without going through
+ * {@code MessageDigest.getInstance()}, which looks up the security providers every time it is
+ * called. Each thread gets its own instance as {@code MessageDigest} is not thread-safe.
+ */
+public final class Sha256Digest {
+
+    private static final ThreadLocal<MessageDigest> threadDigest =
+            new ThreadLocal<MessageDigest>() {
+                @Override
+                protected MessageDigest initialValue() {
+                    try {
+                        return MessageDigest.getInstance("SHA-256");
+                    } catch (NoSuchAlgorithmException e) {
+                        throw new IllegalStateException("Should never happen");
+                    }
+                }
+            };
+
+    private Sha256Digest() {
+    }
+
+    /**
+     * Retrieve the calling thread's SHA-256 digest, reset and ready to be used. It must not be
+     * shared with other threads.
+     */
+    @NonNull
+    public static MessageDigest get() {
+        MessageDigest digest = threadDigest.get();
+        digest.reset();
+        return digest;
+    }
+
+    /**
+     * Compute the SHA-256 hash of the supplied data.
+     */
+    @NonNull
+    public static byte[] digest(@NonNull byte[] data) {
+        return get().digest(data);
+    }
+}